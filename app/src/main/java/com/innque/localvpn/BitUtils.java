@@ -1,5 +1,7 @@
 package com.innque.localvpn;
 
+import java.nio.ByteBuffer;
+
 public class BitUtils {
     public static short getUnsignedByte(byte value) {
         return (short) (value & 0xFF);
@@ -23,6 +25,60 @@ public class BitUtils {
         return sum & mask;
     }
 
+    // one's complement sum of length bytes at offset, 8 bytes at a time, not folded.
+    // uses absolute reads so the buffer position/limit are left alone, buffer must be big endian
+    public static long sum(ByteBuffer buffer, int offset, int length) {
+        long sum = 0;
+        int end = offset + length;
+        // each long adds two 32 bit halves, can't overflow for anything near a packet size
+        while (end - offset >= 8) {
+            long word = buffer.getLong(offset);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            offset += 8;
+        }
+        if (end - offset >= 4) {
+            sum += buffer.getInt(offset) & 0xFFFFFFFFL;
+            offset += 4;
+        }
+        if (end - offset >= 2) {
+            sum += buffer.getShort(offset) & 0xFFFF;
+            offset += 2;
+        }
+        // odd length, pad with zero
+        if (end - offset > 0) {
+            sum += (buffer.get(offset) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    // fold a sum down to 16 bits with end around carry
+    public static int fold(long sum) {
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        return (int) sum;
+    }
+
+    // internet checksum of a slice, initial carries e.g. the pseudo header sum
+    public static int checksum(ByteBuffer buffer, int offset, int length, long initial) {
+        return ~fold(initial + sum(buffer, offset, length)) & 0xFFFF;
+    }
+
+    // incremental checksum update (RFC 1624 eqn. 3): HC' = ~(~HC + ~m + m')
+    public static int checksumUpdate(int checksum, int oldValue, int newValue) {
+        int sum = (~checksum & 0xFFFF) + (~oldValue & 0xFFFF) + (newValue & 0xFFFF);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    // same as checksumUpdate for a 32 bit field, i.e. two 16 bit words
+    public static int checksumUpdate32(int checksum, int oldValue, int newValue) {
+        checksum = checksumUpdate(checksum, oldValue >>> 16, newValue >>> 16);
+        return checksumUpdate(checksum, oldValue, newValue);
+    }
+
     public static byte[] toByteArray(String hex) {
         int len = hex.length();
         byte[] data = new byte[len / 2];
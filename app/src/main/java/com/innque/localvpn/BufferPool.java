@@ -0,0 +1,109 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of packet buffers, buffers are handed out cleared. Only the thread owning the pool
+ * acquires, any thread may release, so the free list is a multi-producer RingBuffer and neither
+ * side takes a lock. The counters are the owner's, read them once it is done.
+ */
+public class BufferPool {
+    private final RingBuffer<ByteBuffer> free;
+    // buffers handed out in their PooledBuffer, they come back still wrapped
+    private final RingBuffer<PooledBuffer> wrapped;
+    private final int bufferSize;
+    private final boolean direct;
+
+    // owner thread only
+    private long hits;
+    private long misses;
+    // released into a full free list and left to the GC, rare
+    private final AtomicLong dropped = new AtomicLong();
+
+    public BufferPool(int capacity, int bufferSize, boolean direct) {
+        this.free = new RingBuffer<>(capacity, true, new WaitStrategy.Yielding());
+        this.wrapped = new RingBuffer<>(capacity, true, new WaitStrategy.Yielding());
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    // owner thread only
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            hits++;
+            return buffer;
+        }
+        misses++;
+        return allocate();
+    }
+
+    // owner thread only, same as acquire with the wrapper reused too, the last release returns both
+    public PooledBuffer acquirePooled() {
+        PooledBuffer pooled = wrapped.poll();
+        if (pooled != null) {
+            hits++;
+            return pooled.reuse();
+        }
+        misses++;
+        return new PooledBuffer(allocate(), this, true);
+    }
+
+    private ByteBuffer allocate() {
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return; // not ours
+        }
+        buffer.clear();
+        if (!free.offer(buffer)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // last release of a buffer from acquirePooled
+    void recycle(PooledBuffer pooled) {
+        if (!wrapped.offer(pooled)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    // every buffer was allocated on a miss, the ones not out are free, wrapped or not, or were dropped
+    public long getOutstanding() {
+        return misses - dropped.get() - getAvailable();
+    }
+
+    public int getAvailable() {
+        return free.size() + wrapped.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BufferPool{");
+        sb.append("hits:").append(getHits());
+        sb.append(",misses:").append(getMisses());
+        sb.append(",outstanding:").append(getOutstanding());
+        sb.append(",available:").append(getAvailable());
+        sb.append("}");
+        return sb.toString();
+    }
+}
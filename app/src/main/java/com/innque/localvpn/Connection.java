@@ -9,87 +9,149 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.Selector;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Connection implements Runnable {
     private static final String TAG = "Connection";
+    // pool config
+    private static final int POOL_SIZE = 256; // buffers kept for reuse, device packets from the tun reader
+    private static final int BUFFER_SIZE = LocalVPNService.MTU; // a whole tun packet
+    private static final int HEADER_POOL_SIZE = 4096; // per shard, a header for each segment the tun queue holds
+    private static final int HEADER_SIZE = 60; // ip + tcp header with options
+    private static final int READ_POOL_SIZE = 32; // per shard
+    private static final int READ_SIZE = 64 * 1024; // socket read per readiness, cut into mss segments
+    private static final boolean DIRECT_BUFFERS = true; // tun and socket i/o without a bounce copy
+    // queues between the threads
+    private static final int DEVICE_QUEUE_SIZE = 1024; // tun reader -> each shard
+    private static final int TUN_QUEUE_SIZE = 4096; // workers -> tun writer
+    private static final WaitStrategy.Type WAIT_STRATEGY = WaitStrategy.Type.SPIN_THEN_PARK; // tun writer
+    // event loop shards, each with its own selector and flows
+    private static final int SHARDS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // flow table cap from a memory budget, closing and idle flows make room for new ones
+    private static final long FLOW_MEMORY = 32 * 1024 * 1024; // all shards
+    private static final int FLOW_SIZE = 1024; // tcb with its header fields, socket and key, queues empty
+    private static final int MAX_FLOWS = (int) (FLOW_MEMORY / FLOW_SIZE / SHARDS); // per shard
+    private static final int SEND_QUEUE_LIMIT = ConnectionSend.SEND_QUEUE_LIMIT; // bytes per flow waiting on its socket
+    private static final long ACK_DELAY = ConnectionSend.ACK_DELAY; // 0 acks every device segment right away
+    private static final int FORWARD_ADDRESS = 0xC0A8FE6C; // 192.168.254.108
+    private static final long SHUTDOWN_TIMEOUT = 5; // seconds the workers get to stop before the stats are logged
     private FileDescriptor fd;
     private VpnService vpn;
 
-    private Selector selector;
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+    private EventLoop[] loops;
+    private TunWriter tunWriter;
     private ExecutorService executorService;
+    private BufferPool pool;
+    private PacketView view = new PacketView();
 
 
     public Connection(FileDescriptor fd, VpnService vpn) {
         this.fd = fd;
         this.vpn = vpn;
+        pool = new BufferPool(POOL_SIZE, BUFFER_SIZE, DIRECT_BUFFERS);
+        // tun is written from its own thread, reads stay on the connection thread
+        RingBuffer<Segment> networkToDeviceQueue = new RingBuffer<>(TUN_QUEUE_SIZE, true, WaitStrategy.create(WAIT_STRATEGY));
+        tunWriter = new TunWriter(new FileOutputStream(this.fd).getChannel(), networkToDeviceQueue);
+        // tun writer plus one thread per shard
+        executorService = Executors.newFixedThreadPool(1 + SHARDS);
+        executorService.submit(tunWriter);
+        loops = new EventLoop[SHARDS];
         try {
-            selector = Selector.open();
+            for (int i = 0; i < SHARDS; i++) {
+                // each shard acquires only from its own header and read pools
+                BufferPool headerPool = new BufferPool(HEADER_POOL_SIZE, HEADER_SIZE, DIRECT_BUFFERS);
+                BufferPool readPool = new BufferPool(READ_POOL_SIZE, READ_SIZE, DIRECT_BUFFERS);
+                loops[i] = new EventLoop(i, DEVICE_QUEUE_SIZE, MAX_FLOWS, tunWriter, pool, headerPool, readPool, vpn);
+                loops[i].getSend().setSendQueueLimit(SEND_QUEUE_LIMIT);
+                loops[i].getSend().setAckDelay(ACK_DELAY);
+                executorService.submit(loops[i]);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        deviceToNetworkQueue = new ConcurrentLinkedQueue<>();
-        networkToDeviceQueue = new ConcurrentLinkedQueue<>();
-        executorService = Executors.newFixedThreadPool(2);
-        executorService.submit(new ConnectionSend(selector, deviceToNetworkQueue, networkToDeviceQueue, vpn));
-        executorService.submit(new ConnectionReceive(selector, networkToDeviceQueue));
+    }
+
+    public BufferPool getPool() {
+        return pool;
     }
 
 
+    // tun reader, blocks in read until the device sends a packet
     @Override
     public void run() {
         Log.e(TAG, "run: ");
         FileChannel in = new FileInputStream(this.fd).getChannel();
-        FileChannel out = new FileOutputStream(this.fd).getChannel();
 
-        boolean dataSent = false;
-        boolean dataReceived = false;
-        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        ByteBuffer buffer = pool.acquire();
         try {
-
-            while (true) {
-                if (dataSent) {
-                    buffer = ByteBuffer.allocate(1500);
-                } else {
-                    buffer.clear();
-                }
+            while (!Thread.interrupted()) {
                 int size = in.read(buffer);
-                Log.v(TAG, "run:size " + size + "\n");
-                if (size > 0) {
-                    dataSent = true;
-                    buffer.flip();
-                    Packet packet = new Packet(buffer);
-                    if (packet.ipHeader.getDestinationAddress().getHostName().equals("192.168.254.108")) {
-                        deviceToNetworkQueue.offer(packet);
-                    } else {
-                        dataSent = false;
-                    }
-                } else {
-                    dataSent = false;
+                if (size <= 0) {
+                    buffer.clear();
+                    continue;
                 }
-                ByteBuffer bufferNetwork = networkToDeviceQueue.poll();
-                if (bufferNetwork != null) {
-                    Packet packet = new Packet(bufferNetwork);
-                    bufferNetwork.limit(packet.ipHeader.getTotalLength());
-                    bufferNetwork.position(0);
-                    out.write(bufferNetwork);
-                    dataReceived = true;
-                    bufferNetwork.clear();
+                buffer.flip();
+                view.wrap(buffer, 0);
+                boolean dns = view.isUDP() && view.getDestinationPort() == DNSResolver.PORT;
+                // queries to one server go to one shard, so they share its cache
+                long key = dns ? TCB.key(view.getDestinationAddress(), DNSResolver.PORT, 0) : view.flowKey();
+                // when the send worker can't keep up the packet is dropped, like a full nic queue
+                if ((dns || (view.isTCP() || view.isUDP()) && view.getDestinationAddress() == FORWARD_ADDRESS)
+                        && loops[EventLoop.shard(key, loops.length)].offer(buffer)) {
+                    // previous buffer is owned by the shard now
+                    buffer = pool.acquire();
                 } else {
-                    dataReceived = false;
-                }
-                if (!dataSent && !dataReceived) {
-                    Thread.sleep(10);
+                    buffer.clear();
                 }
             }
         } catch (Exception e) {
             Log.e(TAG, "Exception: ", e);
         }
+        pool.release(buffer);
+        executorService.shutdownNow();
+        // the counters are plain fields of the workers, read them once the workers are gone
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!executorService.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                Log.e(TAG, "workers still running, stats may be stale");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            Log.e(TAG, "interrupted waiting for the workers, stats may be stale");
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Log.e(TAG, "pool: " + pool + " tun write errors: " + tunWriter.getErrors());
+        for (EventLoop loop : loops) {
+            ConnectionReceive receive = loop.getReceive();
+            Log.e(TAG, "shard " + loop.getIndex() + " selects: " + receive.getSelects() + " wakeups: " + loop.getWakeups()
+                    + " keys: " + receive.getKeysHandled() + " max keys/select: " + receive.getMaxKeysPerSelect()
+                    + " reads: " + receive.getReads() + " segments: " + receive.getSegments()
+                    + " timeouts: " + loop.getTimeouts() + " fast retransmits: " + loop.getSend().getFastRetransmits()
+                    + " acks sent: " + loop.getSend().getAcksSent() + " suppressed: " + loop.getSend().getAcksSuppressed()
+                    + " resets: " + loop.getSend().getResets() + " connect timeouts: " + loop.getConnectTimeouts()
+                    + " idle timeouts: " + loop.getIdleTimeouts() + " flows: " + loop.getFlowCount()
+                    + " evicted closing: " + loop.getClosingEvictions() + " idle: " + loop.getIdleEvictions()
+                    + " refused: " + loop.getRefused() + " errors: " + loop.getSend().getErrors()
+                    + " key errors: " + receive.getErrors());
+            UDPForwarder udp = loop.getUdp();
+            Log.e(TAG, "shard " + loop.getIndex() + " udp sent: " + udp.getDatagramsSent()
+                    + " received: " + udp.getDatagramsReceived() + " dropped: " + udp.getDropped()
+                    + " sessions: " + udp.getSessionCount() + " opened: " + udp.getSessionsOpened()
+                    + " expired: " + udp.getSessionsExpired() + " evicted: " + udp.getSessionsEvicted());
+            Log.e(TAG, "shard " + loop.getIndex() + " headerPool: " + loop.getHeaderPool()
+                    + " readPool: " + loop.getReadPool() + " shortPool: " + loop.getReceive().getShortPool()
+                    + " replyPool: " + udp.getPool());
+            DNSResolver dns = udp.getDns();
+            Log.e(TAG, "shard " + loop.getIndex() + " dns hits: " + dns.getHits() + " misses: " + dns.getMisses()
+                    + " hit rate: " + dns.getHitRate() + " joined: " + dns.getJoined()
+                    + " forwarded: " + dns.getForwarded() + " responses: " + dns.getResponses()
+                    + " truncated: " + dns.getTruncated() + " uncacheable: " + dns.getUncacheable()
+                    + " cached: " + dns.getCacheSize() + " evicted: " + dns.getEvictions());
+        }
         Log.e(TAG, "done: ");
     }
 }
@@ -9,74 +9,297 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class ConnectionReceive implements Runnable {
+/**
+ * responsible for data coming back from remote, runs on the event loop thread
+ */
+public class ConnectionReceive {
     private static final String TAG = "ConnectionReceive";
 
-    private static final int HEADER_SIZE = IPHeader.SIZE + TCPHeader.SIZE;
+    // reads from one key before moving on to the next ready key, each up to a read buffer
+    public static final int READ_BUDGET = 1;
+    // largest segment towards the device, tun mtu minus ip and tcp headers
+    public static final int MSS = LocalVPNService.MTU - IPHeader.SIZE - TCPHeader.SIZE;
+    public static final int MIN_MSS = 536;
+    // short reads kept for retransmission, copied out of the large read buffers
+    private static final int SHORT_POOL_SIZE = 256;
 
     private Selector selector;
-    private ConcurrentLinkedQueue<ByteBuffer> localQueue;
+    private TunWriter tunWriter;
+    // read buffers, each read is cut into segments of at most mss bytes
+    private BufferPool pool;
+    // mss sized, a read that fits one gives its large buffer back at once instead of holding it
+    // until the device acks, null when the read buffers are that small already
+    private BufferPool shortPool;
+    // flushes flows waiting on OP_WRITE
+    private ConnectionSend send;
+    // replies of udp sessions registered on the same selector
+    private UDPForwarder udp;
+    private int readSize;
+    private int mss;
+    private int readBudget;
+    // segments of one read, checksummed before any of them is handed to the writer
+    private Segment[] batch;
 
-    public ConnectionReceive(Selector selector, ConcurrentLinkedQueue<ByteBuffer> localQueue) {
+    // counters
+    private long selects;
+    private long keysHandled;
+    private int maxKeysPerSelect;
+    private long reads;
+    private long segments;
+    private long errors;
+
+    public ConnectionReceive(Selector selector, TunWriter tunWriter, BufferPool pool) {
+        this(selector, tunWriter, pool, READ_BUDGET);
+    }
+
+    public ConnectionReceive(Selector selector, TunWriter tunWriter, BufferPool pool, int readBudget) {
+        this(selector, tunWriter, pool, readBudget, null);
+    }
+
+    public ConnectionReceive(Selector selector, TunWriter tunWriter, BufferPool pool, int readBudget,
+                             ConnectionSend send) {
         this.selector = selector;
-        this.localQueue = localQueue;
+        this.send = send;
+        this.tunWriter = tunWriter;
+        this.pool = pool;
+        this.readSize = pool.getBufferSize();
+        this.mss = Math.min(MSS, readSize);
+        if (readSize > MSS) {
+            this.shortPool = new BufferPool(SHORT_POOL_SIZE, MSS, pool.isDirect());
+        }
+        this.readBudget = readBudget;
+        // room for the smallest mss a device may ask for
+        this.batch = new Segment[(readSize + MIN_MSS - 1) / MIN_MSS];
     }
 
 
-    @Override
-    public void run() {
-        try {
-            while (!Thread.interrupted()) {
-                if (selector.select() == 0) {
-                    Thread.sleep(10);
-                    continue;
-                }
-                Set<SelectionKey> keys = selector.selectedKeys();
-                Iterator<SelectionKey> iterator = keys.iterator();
-                SelectionKey key = null;
-                while (iterator.hasNext()) {
-                    key = iterator.next();
-                    iterator.remove();
+    // handles every ready key once, a key with data left over is selected again next round
+    public int processSelectedKeys() throws IOException {
+        Set<SelectionKey> keys = selector.selectedKeys();
+        Iterator<SelectionKey> iterator = keys.iterator();
+        int handled = 0;
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            handled++;
+            try {
+                handle(key);
+            } catch (RuntimeException e) {
+                // a flow in a state we didn't expect is given up, the other keys are still handled
+                errors++;
+                Log.e(TAG, "key: ", e);
+                if (key.attachment() instanceof TCB) {
+                    reset((TCB) key.attachment());
                 }
-                if (key.isConnectable()) {
-                    connected(key);
+            }
+        }
+        selects++;
+        keysHandled += handled;
+        if (handled > maxKeysPerSelect) {
+            maxKeysPerSelect = handled;
+        }
+        return handled;
+    }
+
+    private void handle(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof UDPSession) {
+            udp.read(key);
+            return;
+        }
+        if (attachment instanceof DNSResolver) {
+            ((DNSResolver) attachment).read();
+            return;
+        }
+        TCB tcb = (TCB) attachment;
+        try {
+            if (key.isConnectable()) {
+                connected(key);
+            } else {
+                if (key.isWritable() && send != null) {
+                    send.flush(key);
                 }
-                if (key.isReadable()) {
-                    read(key);
+                // flushing up to a device FIN may have closed the flow
+                if (key.isValid() && key.isReadable()) {
+                    for (int i = 0; i < readBudget; i++) {
+                        // a short read means the socket is drained
+                        if (read(key) < readSize) {
+                            break;
+                        }
+                    }
                 }
             }
-        } catch (Exception e) {
-            Log.e(TAG, "run: ", e);
+        } catch (IOException e) {
+            // connect failed or the remote reset, the device gets an RST
+            reset(tcb);
         }
+        if (send != null) {
+            send.rearm(tcb);
+        }
+    }
+
+    public void setUdp(UDPForwarder udp) {
+        this.udp = udp;
+    }
+
+    public BufferPool getShortPool() {
+        return shortPool;
+    }
+
+    public long getSelects() {
+        return selects;
+    }
+
+    public long getKeysHandled() {
+        return keysHandled;
+    }
+
+    public int getMaxKeysPerSelect() {
+        return maxKeysPerSelect;
+    }
+
+    public int getReadBudget() {
+        return readBudget;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getSegments() {
+        return segments;
+    }
+
+    // keys whose handling failed unexpectedly, their flows were reset
+    public long getErrors() {
+        return errors;
     }
 
     public void connected(SelectionKey key) throws IOException {
         TCB tcb = (TCB) key.attachment();
-        Packet packet = tcb.packet;
         if (tcb.channel.finishConnect()) {
             tcb.status = TCB.TCBStatus.SYN_RECEIVED;
-            packet.update((byte) (TCPHeader.SYN + TCPHeader.ACK), tcb.lSequenceNum, tcb.lAcknowledgement, 0);
-            localQueue.offer(packet.buffer);
+            tunWriter.offer(synAck(tcb));
             tcb.lSequenceNum++; // next sequence
             // update to read event
             key.interestOps(SelectionKey.OP_READ);
         }
     }
 
-    public void read(SelectionKey key) throws IOException {
+    // SYN-ACK carrying our mss and, when the device offered it, our window scale
+    public Segment synAck(TCB tcb) {
+        return synAck(tcb, tcb.lSequenceNum);
+    }
+
+    // same, from the sequence number it took once already when the first one got lost
+    public Segment synAck(TCB tcb, long sequence) {
+        BufferPool headerPool = tcb.headerPool;
+        ByteBuffer buffer = headerPool.acquire();
+        buffer.put(0, (byte) PacketView.MSS);
+        buffer.put(1, (byte) 4);
+        buffer.putShort(2, (short) MSS);
+        int length = 4;
+        if (tcb.localWindowScale >= 0) {
+            buffer.put(4, (byte) 1); // no operation, keeps the option aligned
+            buffer.put(5, (byte) PacketView.WINDOW_SCALE);
+            buffer.put(6, (byte) 3);
+            buffer.put(7, (byte) tcb.localWindowScale);
+            length = 8;
+        }
+        PooledBuffer options = new PooledBuffer(buffer, headerPool);
+        return tcb.segment((byte) (TCPHeader.SYN + TCPHeader.ACK), sequence, length, options, options.buffer, 0,
+                length);
+    }
+
+    // bytes read, 0 when nothing was ready or the device window is full and -1 at end of stream
+    public int read(SelectionKey key) throws IOException {
         TCB tcb = (TCB) key.attachment();
-        Packet packet = tcb.packet;
-        ByteBuffer buffer = packet.buffer;
-        buffer.position(HEADER_SIZE);
-        // read data
+        int available = tcb.available();
+        if (available == 0) {
+            closeWindow(tcb, key);
+            return 0;
+        }
+        // read as much as the device can take, then cut it into segments
+        PooledBuffer payload = pool.acquirePooled();
+        ByteBuffer buffer = payload.buffer;
+        buffer.limit(Math.min(readSize, available));
         SocketChannel channel = (SocketChannel) key.channel();
-        int size = channel.read(buffer);
-        packet.update((byte) (TCPHeader.PSH + TCPHeader.ACK), tcb.lSequenceNum, tcb.lAcknowledgement, size);
-        tcb.lSequenceNum += size; // Next sequence number
-        packet.buffer.position(HEADER_SIZE + size);
-        localQueue.offer(packet.buffer);
+        int size;
+        try {
+            size = channel.read(buffer);
+        } catch (IOException e) {
+            payload.release();
+            throw e;
+        }
+        reads++;
+        if (size <= 0) {
+            payload.release();
+            if (size < 0) {
+                // remote closed, stop reading and pass the FIN on
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (send != null) {
+                    send.finish(tcb);
+                }
+            }
+            return size;
+        }
+        long now = System.nanoTime();
+        tcb.lastActivity = now;
+        if (shortPool != null && size <= MSS) {
+            PooledBuffer copy = shortPool.acquirePooled();
+            buffer.flip();
+            copy.buffer.put(buffer);
+            payload.release();
+            payload = copy;
+        }
+        if (send != null) {
+            send.piggyback(tcb);
+        }
+        int mss = Math.min(this.mss, tcb.mss);
+        int count = (size + mss - 1) / mss;
+        // one reference per segment, all taken before the writer can release any,
+        // the first one stays with the retransmit queue until the device acks the read
+        for (int i = 0; i < count; i++) {
+            payload.retain();
+        }
+        tcb.retransmitQueue.add(payload, 0, size, tcb.lSequenceNum, now);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(mss, size - offset);
+            // push with the last segment of the read
+            byte flags = (byte) (i == count - 1 ? TCPHeader.PSH + TCPHeader.ACK : TCPHeader.ACK);
+            batch[i] = tcb.segment(flags, payload, offset, length);
+            tcb.lSequenceNum += length; // Next sequence number
+            offset += length;
+        }
+        // the writer positions the shared buffer, so hand segments over only after every checksum
+        for (int i = 0; i < count; i++) {
+            tunWriter.offer(batch[i]);
+            batch[i] = null;
+        }
+        segments += count;
+        if (tcb.available() == 0) {
+            closeWindow(tcb, key);
+        }
+        return size;
+    }
+
+    private void reset(TCB tcb) {
+        if (send != null) {
+            send.reset(tcb);
+        } else {
+            tcb.close();
+        }
+    }
+
+    // device can't take more, leave the data in the socket until its ack opens the window
+    private void closeWindow(TCB tcb, SelectionKey key) {
+        tcb.windowClosed = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
     }
 
 
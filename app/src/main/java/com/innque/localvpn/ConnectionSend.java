@@ -1,126 +1,442 @@
 package com.innque.localvpn;
 
 import android.net.VpnService;
+import android.util.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * responsible for sending data to remote
+ * responsible for sending data to remote, runs on the event loop thread
  */
-public class ConnectionSend implements Runnable {
+public class ConnectionSend implements RingBuffer.Handler<ByteBuffer> {
+    private static final String TAG = "ConnectionSend";
+    // device payload queued per flow while its socket is full
+    public static final int SEND_QUEUE_LIMIT = 64 * 1024;
+    // longest an ack for device data is held back hoping to share it
+    public static final long ACK_DELAY = 10000000L; // 10 ms
+
     private VpnService vpn;
+    private EventLoop loop;
     private Selector selector;
     private Random random = new Random();
-    private ConcurrentLinkedQueue<ByteBuffer> localQueue;
-    private ConcurrentLinkedQueue<Packet> remoteQueue;
+    private TunWriter tunWriter;
+    private BufferPool pool;
+    private BufferPool headerPool;
+    private int sendQueueLimit = SEND_QUEUE_LIMIT;
+    private long ackDelay = ACK_DELAY;
+    private long fastRetransmits;
+    private long acksSent;
+    private long acksSuppressed;
+    private long resets;
+    private long errors;
+    // re-pointed at every device packet
+    private PacketView view = new PacketView();
 
-    public ConnectionSend(Selector selector, ConcurrentLinkedQueue<Packet> remoteQueue, ConcurrentLinkedQueue<ByteBuffer> localQueue, VpnService vpn) {
+    public ConnectionSend(EventLoop loop, TunWriter tunWriter, BufferPool pool, BufferPool headerPool,
+                          VpnService vpn) {
         this.vpn = vpn;
-        this.localQueue = localQueue;
-        this.remoteQueue = remoteQueue;
-        this.selector = selector;
+        this.loop = loop;
+        this.tunWriter = tunWriter;
+        this.pool = pool;
+        this.headerPool = headerPool;
+        this.selector = loop.getSelector();
     }
 
     @Override
-    public void run() {
-        while (!Thread.interrupted()) {
-            Packet packet = remoteQueue.poll();
-            if (packet == null) {
-                continue;
+    public void onElement(ByteBuffer buffer) {
+        try {
+            this.send(buffer);
+        } catch (IOException | RuntimeException e) {
+            // one bad packet must not take the shard down, its buffer went back already
+            errors++;
+            Log.e(TAG, "send: ", e);
+        }
+    }
+
+    public void send(ByteBuffer buffer) throws IOException {
+        PacketView view = this.view.wrap(buffer, 0);
+        TCB tcb = null;
+        boolean queued = false;
+        try {
+            if (view.isUDP()) {
+                // the payload is written to the socket right away
+                loop.getUdp().send(view);
+                return;
             }
-            try {
-                this.send(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
+            long id = view.flowKey();
+            tcb = loop.getTCB(id);
+            if (tcb == null) {
+                initializeConnection(id, view);
+            } else if (view.isRST()) {
+                // device gave up on the flow, nothing to answer and the remote is reset too
+                loop.abortTCB(tcb);
+            } else if (view.isSYN()) {
+                if (tcb.status == TCB.TCBStatus.TIME_WAIT) {
+                    // port reused, the old flow is over
+                    loop.closeTCB(tcb);
+                    initializeConnection(id, view);
+                } else if (tcb.status == TCB.TCBStatus.SYN_RECEIVED) {
+                    // our SYN-ACK got lost, the device asks again
+                    tunWriter.offer(loop.getReceive().synAck(tcb, tcb.lSequenceNum - 1));
+                }
+            } else if (view.isACK()) {
+                try {
+                    queued = processACK(tcb, view);
+                } catch (IOException e) {
+                    // remote reset or went away
+                    reset(tcb);
+                }
+            }
+        } finally {
+            // done with the device packet unless its payload waits in the send queue
+            if (!queued) {
+                pool.release(buffer);
+            }
+            if (tcb != null) {
+                loop.rearm(tcb);
             }
         }
     }
 
-    public void send(Packet packet) throws IOException {
-        IPHeader ipHeader = packet.ipHeader;
-        TCPHeader tcpHeader = packet.tcpHeader;
+    public void setSendQueueLimit(int sendQueueLimit) {
+        this.sendQueueLimit = sendQueueLimit;
+    }
+
+    public int getSendQueueLimit() {
+        return sendQueueLimit;
+    }
 
-        InetAddress destinationAddress = ipHeader.getDestinationAddress();
-        int destinationPort = tcpHeader.getDestinationPort();
-        int sourcePort = tcpHeader.getSourcePort();
+    // 0 acks every segment right away
+    public void setAckDelay(long ackDelay) {
+        this.ackDelay = ackDelay;
+    }
 
-        String id = destinationAddress.getHostAddress() + ":" + destinationPort + ":" + sourcePort;
-        TCB tcb = TCB.getTCB(id);
-        if (tcb == null) {
-            initializeConnection(id, packet);
-        } else if (tcpHeader.isACK()) {
-            processACK(tcb, packet);
-        }
+    public long getAckDelay() {
+        return ackDelay;
+    }
+
+    public long getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    // pure acks sent to the device
+    public long getAcksSent() {
+        return acksSent;
+    }
+
+    // device segments acked without a pure ack of their own
+    public long getAcksSuppressed() {
+        return acksSuppressed;
+    }
 
+    // RSTs sent to the device
+    public long getResets() {
+        return resets;
+    }
+
+    // device packets dropped on an unexpected error
+    public long getErrors() {
+        return errors;
+    }
+
+    // device packet that won't be handled
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
     }
 
 
     // first connection
-    public void initializeConnection(String id, Packet packet) throws IOException {
-        IPHeader ipHeader = packet.ipHeader;
-        TCPHeader tcpHeader = packet.tcpHeader;
-        //
-        InetAddress destinationAddress = ipHeader.getDestinationAddress();
-        int destinationPort = tcpHeader.getDestinationPort();
-
-        if (tcpHeader.isSYN()) {
-            // create socket connection
+    public void initializeConnection(long id, PacketView view) throws IOException {
+        if (view.isSYN()) {
+            // reply template: ip header and the tcp header without options, in a small buffer
+            ByteBuffer syn = view.getBuffer();
+            ByteBuffer header = headerPool.acquire();
+            for (int i = 0; i < IPHeader.SIZE; i++) {
+                header.put(i, syn.get(view.getOffset() + i));
+            }
+            for (int i = 0; i < TCPHeader.SIZE; i++) {
+                header.put(IPHeader.SIZE + i, syn.get(view.getTransportOffset() + i));
+            }
+            header.put(0, (byte) 0x45); // ipv4, no ip options
+            header.limit(IPHeader.SIZE + TCPHeader.SIZE);
+            Packet packet = new Packet(header, headerPool);
+            long lAcknowledge = (view.getSequenceNumber() + 1) & 0xFFFFFFFFL;
+            if (!loop.makeRoom(System.nanoTime())) {
+                // every flow is busy, refuse this one instead of killing one of them
+                packet.swapSourceAndDestination();
+                TCB refused = new TCB(id, 0, 0, lAcknowledge, 0, null, packet);
+                reset(refused);
+                return;
+            }
+
+            // create socket connection, the only place an InetAddress is needed
+            InetAddress destinationAddress = packet.ipHeader.getDestinationAddress();
+            int destinationPort = view.getDestinationPort();
             SocketChannel channel = SocketChannel.open();
-            channel.configureBlocking(false);
-            vpn.protect(channel.socket());
-            channel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+            try {
+                channel.configureBlocking(false);
+                vpn.protect(channel.socket());
+                channel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+            } catch (IOException e) {
+                // no route, the device tries its SYN again
+                channel.close();
+                packet.release();
+                throw e;
+            }
 
 
-            // reuse packet
-            packet.swapSourceAndDestination();
             long lSequence = random.nextInt(Short.MAX_VALUE + 1);
-            long rSequence = tcpHeader.getSequenceNumber();
-            long lAcknowledge = tcpHeader.getSequenceNumber() + 1;
-            long rAcknowledge = tcpHeader.getAcknowledgmentNumber();
+            long rSequence = view.getSequenceNumber();
+            // nothing of ours acked yet
+            long rAcknowledge = lSequence;
+            packet.swapSourceAndDestination();
+            // our window is what the send queue holds past the bytes the socket took
+            int localWindowScale = windowScale(sendQueueLimit);
+            int scale = view.getWindowScale();
+            if (scale < 0) {
+                localWindowScale = -1;
+            }
+            // the window of a SYN is never scaled, the shift applies once the device acks ours
+            packet.tcpHeader.setWindow((short) Math.min(sendQueueLimit, 0xFFFF));
 
             TCB tcb = new TCB(id, lSequence, rSequence, lAcknowledge, rAcknowledge, channel, packet);
-            TCB.putTCB(id, tcb);
+            // the device window, unscaled in its SYN, scaled from its next ack when both sides offer scaling
+            tcb.window = view.getWindow();
+            tcb.windowScale = Math.max(scale, 0);
+            tcb.localWindowScale = localWindowScale;
+            int mss = view.getMss();
+            if (mss > 0) {
+                tcb.mss = Math.max(ConnectionReceive.MIN_MSS, Math.min(mss, ConnectionReceive.MSS));
+            }
+            loop.putTCB(id, tcb);
 
-            // register to selector
+            // register to selector, we are the selecting thread
             tcb.status = TCB.TCBStatus.SYN_SENT;
-            selector.wakeup();
             tcb.selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, tcb);
+            tcb.lastActivity = System.nanoTime();
+            loop.schedule(tcb, tcb.lastActivity + EventLoop.CONNECT_TIMEOUT);
         }
     }
 
-    public void processACK(TCB tcb, Packet packet) throws IOException {
-        IPHeader ipHeader = packet.ipHeader;
-        TCPHeader tcpHeader = packet.tcpHeader;
+    // true when the device buffer was kept in the flow's send queue
+    public boolean processACK(TCB tcb, PacketView view) throws IOException {
+        long now = System.nanoTime();
+        tcb.lastActivity = now;
+        if (tcb.status == TCB.TCBStatus.TIME_WAIT) {
+            // socket is gone, only a FIN whose ack got lost needs an answer
+            if (view.isFIN()) {
+                sendAck(tcb);
+            }
+            return false;
+        }
+        int size = view.getPayloadSize();
+        SocketChannel channel = tcb.channel;
+        // update tcp status, the key already reads since the connect completed
+        if (tcb.status == TCB.TCBStatus.SYN_RECEIVED) {
+            tcb.status = TCB.TCBStatus.ESTABLISHED;
+            tcb.waitingForNetworkData = true;
+            if (tcb.localWindowScale >= 0) {
+                tcb.setAdvertisedWindow((short) (sendQueueLimit >> tcb.localWindowScale));
+            }
+        }
+        updateWindow(tcb, view, now);
+        if (tcb.status == TCB.TCBStatus.LAST_ACK && tcb.inFlight() == 0) {
+            // device acked our FIN, both sides are done
+            loop.closeTCB(tcb);
+            return false;
+        }
+        if (size == 0 && !view.isFIN()) return false; // Empty ACK, nothing to forward
+        if (tcb.finReceived) {
+            // nothing comes after the device FIN, this repeats what we have
+            sendAck(tcb);
+            return false;
+        }
+        // next device byte expected, everything before it is written or queued
+        long expected = (tcb.lAcknowledgement + tcb.sendQueueBytes) & 0xFFFFFFFFL;
+        int offset = (int) (view.getSequenceNumber() - expected);
+        if (offset > 0 || offset < 0 && offset <= -size) {
+            // gap or old retransmit, repeat the current ack now
+            sendAck(tcb);
+            return false;
+        }
+        boolean queued = false;
+        int remaining = 0;
+        if (size > 0) {
+            // forward data to remote server straight from the device buffer,
+            // skipping what a partial retransmit repeats
+            ByteBuffer payload = view.payload();
+            payload.position(payload.position() - offset);
+            int written = 0;
+            if (tcb.sendQueueBytes == 0) {
+                written = channel.write(payload);
+            }
+            remaining = payload.remaining();
+            if (remaining > 0 && tcb.sendQueueBytes + remaining <= sendQueueLimit) {
+                // socket is full, keep the rest until OP_WRITE
+                if (tcb.sendQueue == null) {
+                    tcb.sendQueue = new ArrayDeque<>();
+                }
+                tcb.sendQueue.add(new PooledBuffer(payload, pool));
+                tcb.sendQueueBytes += remaining;
+                tcb.selectionKey.interestOps(tcb.selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                queued = true;
+            }
+            // over the limit the rest is neither queued nor acked, the device sends it again
+            if (written > 0) {
+                acknowledge(tcb, written);
+            }
+        }
+        // the FIN counts once all data of its segment is taken, it is acked when that reached the socket
+        if (view.isFIN() && (remaining == 0 || queued)) {
+            tcb.finReceived = true;
+            if (tcb.sendQueueBytes == 0) {
+                receiveFin(tcb);
+            }
+        }
+        return queued;
+    }
+
+    // device is done sending, the remote sees end of stream
+    private void receiveFin(TCB tcb) throws IOException {
+        tcb.lAcknowledgement = (tcb.lAcknowledgement + 1) & 0xFFFFFFFFL; // the FIN takes a sequence number
+        sendAck(tcb);
+        if (tcb.status == TCB.TCBStatus.FIN_WAIT) {
+            // remote closed first, the socket can go
+            tcb.status = TCB.TCBStatus.TIME_WAIT;
+            tcb.closeChannel();
+            loop.schedule(tcb, System.nanoTime() + EventLoop.TIME_WAIT_TIMEOUT);
+        } else {
+            // half close, the remote may still send
+            tcb.status = TCB.TCBStatus.CLOSE_WAIT;
+            tcb.channel.shutdownOutput();
+        }
+    }
+
+    // remote is done sending, FIN to the device after the data already sent
+    public void finish(TCB tcb) {
+        piggyback(tcb);
+        tunWriter.offer(tcb.segment((byte) (TCPHeader.FIN + TCPHeader.ACK), null, 0, 0));
+        tcb.lSequenceNum++; // the FIN takes a sequence number
+        tcb.status = tcb.status == TCB.TCBStatus.CLOSE_WAIT ? TCB.TCBStatus.LAST_ACK : TCB.TCBStatus.FIN_WAIT;
+        tcb.finRetransmits = 0;
+        // an ack opening the window must not resume reading
+        tcb.windowClosed = false;
+        // resent until acked
+        loop.schedule(tcb, System.nanoTime() + tcb.retransmitQueue.getRto());
+    }
+
+    // our FIN once more, nothing else is unacked
+    public void finAgain(TCB tcb) {
+        piggyback(tcb);
+        tunWriter.offer(tcb.segment((byte) (TCPHeader.FIN + TCPHeader.ACK), tcb.lSequenceNum - 1, null,
+                null, 0, 0));
+    }
+
+    // RST to the device and the remote, the flow is gone, when the remote fails, a timeout gives up or
+    // the flow is evicted or refused
+    public void reset(TCB tcb) {
+        resets++;
+        tunWriter.offer(tcb.segment((byte) (TCPHeader.RST + TCPHeader.ACK), null, 0, 0));
+        loop.abortTCB(tcb);
+    }
 
-        byte[] data = packet.getData();
-        int size = data.length;
-        synchronized (tcb) {
-            SocketChannel channel = tcb.channel;
-            // update tcp status
-            if (tcb.status == TCB.TCBStatus.SYN_RECEIVED) {
-                tcb.status = TCB.TCBStatus.ESTABLISHED;
-                selector.wakeup();
-                tcb.selectionKey = channel.register(selector, SelectionKey.OP_READ, tcb);
-                tcb.waitingForNetworkData = true;
+    // smallest shift that fits a window in the 16 bit field
+    public static int windowScale(int window) {
+        int scale = 0;
+        while ((window >> scale) > 0xFFFF && scale < 14) {
+            scale++;
+        }
+        return scale;
+    }
+
+    // device ack moves the window, reading resumes once it has room
+    private void updateWindow(TCB tcb, PacketView view, long now) {
+        long ack = view.getAcknowledgmentNumber();
+        int acked = (int) (ack - tcb.rAcknowledgement);
+        if (acked < 0 || acked > tcb.inFlight()) {
+            return; // old or acking what we never sent
+        }
+        long window = (long) view.getWindow() << tcb.windowScale;
+        // a pure ack that neither moves nor resizes the window means the device misses a segment
+        boolean duplicate = acked == 0 && view.getPayloadSize() == 0 && window == tcb.window;
+        if (tcb.retransmitQueue.acknowledge(ack, duplicate, now)) {
+            fastRetransmits++;
+            piggyback(tcb);
+            tunWriter.offer(tcb.retransmitQueue.retransmit(tcb, tcb.mss));
+        }
+        tcb.rAcknowledgement = ack;
+        tcb.window = window;
+        if (tcb.windowClosed && tcb.available() > 0) {
+            tcb.windowClosed = false;
+            tcb.selectionKey.interestOps(tcb.selectionKey.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // socket has room again, write queued payload and ack what it took
+    public void flush(SelectionKey key) throws IOException {
+        TCB tcb = (TCB) key.attachment();
+        int written = 0;
+        PooledBuffer pending;
+        while (tcb.sendQueue != null && (pending = tcb.sendQueue.peek()) != null) {
+            written += tcb.channel.write(pending.buffer);
+            if (pending.buffer.hasRemaining()) {
+                break;
             }
-            if (size == 0) return; // Empty ACK, ignore
-            // forward data to remote server
-            channel.write(ByteBuffer.wrap(data));
-            // send ACK to local
-            tcb.lAcknowledgement = tcpHeader.getSequenceNumber() + size;
-            tcb.rAcknowledgement = tcpHeader.getAcknowledgmentNumber();
-            tcb.packet.update((byte) TCPHeader.ACK, tcb.lSequenceNum, tcb.lAcknowledgement, 0);
-            localQueue.offer(tcb.packet.buffer);
+            tcb.sendQueue.poll();
+            pending.release();
+        }
+        tcb.sendQueueBytes -= written;
+        if (tcb.sendQueueBytes == 0) {
+            // drained, the queue goes until the socket backs up again
+            tcb.sendQueue = null;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        if (written > 0) {
+            acknowledge(tcb, written);
         }
+        if (tcb.finReceived && tcb.sendQueueBytes == 0) {
+            // the data before the device FIN is out
+            receiveFin(tcb);
+        }
+    }
+
+    // ack to local the bytes the socket accepted, every second full segment or once the delay runs out
+    private void acknowledge(TCB tcb, int size) {
+        tcb.lAcknowledgement = (tcb.lAcknowledgement + size) & 0xFFFFFFFFL;
+        tcb.ackPendingBytes += size;
+        tcb.ackPendingSegments++;
+        if (tcb.ackPendingBytes >= 2 * ConnectionReceive.MSS || ackDelay == 0) {
+            sendAck(tcb);
+        } else if (tcb.ackDeadline == 0) {
+            tcb.ackDeadline = System.nanoTime() + ackDelay;
+        }
+    }
+
+    // pure ack for everything taken so far, covering the segments whose ack was held back
+    public void sendAck(TCB tcb) {
+        acksSent++;
+        if (tcb.ackPendingSegments > 1) {
+            acksSuppressed += tcb.ackPendingSegments - 1;
+        }
+        tunWriter.offer(tcb.segment((byte) TCPHeader.ACK, null, 0, 0));
+    }
+
+    // a key of the flow was handled, its deadlines may have moved
+    public void rearm(TCB tcb) {
+        loop.rearm(tcb);
+    }
+
+    // downstream data is about to carry the held back ack
+    public void piggyback(TCB tcb) {
+        acksSuppressed += tcb.ackPendingSegments;
     }
 
 
@@ -0,0 +1,75 @@
+package com.innque.localvpn;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cached response to one question asked of one DNS server, or the upstream query for it while
+ * that is in flight. Lives in a FlowTable for its LRU order, keyed by a hash of server and question.
+ */
+public class DNSEntry extends Flow {
+    public int server;
+    public int port;
+    public InetSocketAddress address; // of the server, made with the first upstream query
+    // name, type and class, the name lower cased
+    public byte[] question;
+    // whole response, null until the upstream answer is in
+    public byte[] response;
+    // offsets of the record TTLs in response, counted down in every answer, null when not cached
+    public int[] ttls;
+    // nanoseconds
+    public long stored;
+    public long expires;
+
+    // upstream query in flight, sent is 0 when there is none
+    public int upstreamId;
+    public long sent;
+    public List<Waiter> waiters = new ArrayList<>(1);
+
+    public DNSEntry(long key, int server, int port, byte[] question) {
+        super(key);
+        this.server = server;
+        this.port = port;
+        this.question = question;
+    }
+
+    public static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    // same server and question, the name compared without case
+    public boolean matches(ByteBuffer buffer, int offset, int length, int server, int port) {
+        if (length != question.length || server != this.server || port != this.port) {
+            return false;
+        }
+        int name = length - 4;
+        for (int i = 0; i < name; i++) {
+            if (lower(buffer.get(offset + i)) != (question[i] & 0xFF)) {
+                return false;
+            }
+        }
+        for (int i = name; i < length; i++) {
+            if (buffer.get(offset + i) != question[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Device query waiting on the upstream answer, with its id and question as it asked them
+     */
+    public static class Waiter {
+        public UDPSession to;
+        public int id;
+        public byte[] question;
+
+        public Waiter(UDPSession to, int id, byte[] question) {
+            this.to = to;
+            this.id = id;
+            this.question = question;
+        }
+    }
+}
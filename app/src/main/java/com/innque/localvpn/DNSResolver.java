@@ -0,0 +1,443 @@
+package com.innque.localvpn;
+
+import android.net.VpnService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * DNS stage of one event loop's UDP. Standard queries from the device are answered from a cache
+ * of responses, bounded and LRU like the flow tables, with record TTLs counted down and entries
+ * dropped once the shortest one runs out. A miss goes upstream to the server the device asked,
+ * from one protected socket, and a question already in flight waits for that answer instead of
+ * going out again. Hits are written straight to the tun writer without allocating.
+ */
+public class DNSResolver implements FlowTable.EvictionCallback<DNSEntry> {
+    private static final String TAG = "DNSResolver";
+    public static final int PORT = 53;
+    public static final int CACHE_SIZE = 1024; // responses per loop
+    // nanoseconds, an upstream query unanswered this long goes out again with the next same question
+    public static final long QUERY_TIMEOUT = 2000000000L; // 2 s
+    private static final int MAX_WAITERS = 16; // device queries on one upstream query
+    private static final int HEADER_SIZE = 12;
+    // largest response a tun packet carries, a longer one reaches the device truncated
+    private static final int MAX_RESPONSE = LocalVPNService.MTU - UDPSession.HEADER_SIZE;
+    private static final int MAX_UPSTREAM = 4096; // edns responses may be larger than MAX_RESPONSE
+    private static final int OPT = 41; // edns pseudo record, its ttl field is not a ttl
+    private static final int READ_BUDGET = 16; // upstream responses per readiness
+
+    private UDPForwarder udp;
+    private Selector selector;
+    // replies, one response per buffer
+    private BufferPool pool;
+    private VpnService vpn;
+    private FlowTable<DNSEntry> cache;
+    private int port = PORT;
+    // upstream queries and responses, opened with the first miss
+    private DatagramChannel channel;
+    private ByteBuffer upstream = ByteBuffer.allocateDirect(MAX_UPSTREAM);
+    // reply headers of a hit, addressed again for every query
+    private UDPSession device;
+    private Random random = new Random();
+
+    // counters
+    private long hits;
+    private long misses;
+    private long joined;
+    private long forwarded;
+    private long responses;
+    private long truncated;
+    private long uncacheable;
+    private long evictions;
+    private long dropped;
+
+    public DNSResolver(UDPForwarder udp, Selector selector, int cacheSize, VpnService vpn) {
+        this.udp = udp;
+        this.selector = selector;
+        this.pool = udp.getPool();
+        this.vpn = vpn;
+        this.cache = new FlowTable<>(cacheSize, this);
+    }
+
+    // hash of server and question, the name lower cased
+    public static long key(ByteBuffer buffer, int offset, int length, int server, int port) {
+        long h = 0xCBF29CE484222325L ^ ((long) server << 16 | port); // fnv-1a
+        int name = length - 4;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(offset + i);
+            h ^= i < name ? DNSEntry.lower(b) : b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    // bytes of the question at offset, name, type and class, or -1 when it isn't a plain one
+    public static int questionLength(ByteBuffer buffer, int offset, int end) {
+        int i = offset;
+        while (true) {
+            if (i >= end) {
+                return -1;
+            }
+            int label = buffer.get(i) & 0xFF;
+            if (label == 0) {
+                break;
+            }
+            if (label > 63) {
+                // no compression in a single question
+                return -1;
+            }
+            i += 1 + label;
+        }
+        i += 1 + 4;
+        if (i > end || i - offset > 255 + 4) {
+            return -1;
+        }
+        return i - offset;
+    }
+
+    // query from the device, false when it isn't a standard query and goes out like any datagram
+    public boolean query(PacketView view) {
+        ByteBuffer buffer = view.getBuffer();
+        int start = view.getUdpPayloadOffset();
+        int size = view.getUdpPayloadSize();
+        // one question, no answers, additional records like edns are fine
+        if (size < HEADER_SIZE || (buffer.get(start + 2) & 0xF8) != 0 || buffer.getShort(start + 4) != 1
+                || buffer.getShort(start + 6) != 0 || buffer.getShort(start + 8) != 0) {
+            return false;
+        }
+        int length = questionLength(buffer, start + HEADER_SIZE, start + size);
+        if (length < 0) {
+            return false;
+        }
+        int server = view.getDestinationAddress();
+        int serverPort = view.getDestinationPort();
+        long key = key(buffer, start + HEADER_SIZE, length, server, serverPort);
+        int id = BitUtils.getUnsignedShort(buffer.getShort(start));
+        long now = System.nanoTime();
+        DNSEntry entry = cache.get(key);
+        if (entry != null && !entry.matches(buffer, start + HEADER_SIZE, length, server, serverPort)) {
+            // another question with the same hash, the newer one takes its place
+            cache.remove(key);
+            entry = null;
+        }
+        if (entry != null && entry.response != null) {
+            if (entry.expires - now > 0) {
+                hits++;
+                answer(view, entry, id, now);
+                return true;
+            }
+            // the shortest ttl ran out, ask again
+            entry.response = null;
+            entry.ttls = null;
+        }
+        misses++;
+        if (entry == null) {
+            entry = new DNSEntry(key, server, serverPort, lowerCopy(buffer, start + HEADER_SIZE, length));
+            cache.put(key, entry);
+        } else if (entry.sent != 0 && now - entry.sent < QUERY_TIMEOUT) {
+            // same question on its way already, its answer goes to this query too
+            joined++;
+            if (entry.waiters.size() < MAX_WAITERS) {
+                entry.waiters.add(waiter(view, id, buffer, start + HEADER_SIZE, length));
+            }
+            return true;
+        }
+        // the device gave up on earlier waiters and asks again
+        entry.waiters.clear();
+        entry.waiters.add(waiter(view, id, buffer, start + HEADER_SIZE, length));
+        forward(entry, view, now);
+        return true;
+    }
+
+    private static byte[] lowerCopy(ByteBuffer buffer, int offset, int length) {
+        byte[] question = new byte[length];
+        int name = length - 4;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(offset + i);
+            question[i] = i < name ? (byte) DNSEntry.lower(b) : b;
+        }
+        return question;
+    }
+
+    private static DNSEntry.Waiter waiter(PacketView view, int id, ByteBuffer buffer, int offset, int length) {
+        byte[] question = new byte[length];
+        for (int i = 0; i < length; i++) {
+            question[i] = buffer.get(offset + i);
+        }
+        return new DNSEntry.Waiter(new UDPSession(0, view, null), id, question);
+    }
+
+    // the device query upstream under an id of our own
+    private void forward(DNSEntry entry, PacketView view, long now) {
+        try {
+            if (channel == null) {
+                open();
+            }
+            if (entry.address == null) {
+                entry.address = UDPForwarder.socketAddress(entry.server, entry.port);
+            }
+            entry.upstreamId = random.nextInt(0x10000);
+            upstream.clear();
+            upstream.put(view.udpPayload());
+            upstream.putShort(0, (short) entry.upstreamId);
+            upstream.flip();
+            if (channel.send(upstream, entry.address) > 0) {
+                entry.sent = now;
+                forwarded++;
+            } else {
+                dropped++;
+            }
+        } catch (IOException e) {
+            // the next same question tries again
+            dropped++;
+        }
+    }
+
+    private void open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (vpn != null) {
+                vpn.protect(channel.socket());
+            }
+            channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.channel = channel;
+    }
+
+    // upstream responses, each answers every device query waiting on it
+    public void read() {
+        for (int i = 0; i < READ_BUDGET; i++) {
+            upstream.clear();
+            SocketAddress from;
+            try {
+                from = channel.receive(upstream);
+            } catch (IOException e) {
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+            upstream.flip();
+            response(upstream, (InetSocketAddress) from, System.nanoTime());
+        }
+    }
+
+    private void response(ByteBuffer buffer, InetSocketAddress from, long now) {
+        int size = buffer.limit();
+        if (size < HEADER_SIZE || (buffer.get(2) & 0x80) == 0 || buffer.getShort(4) != 1) {
+            return;
+        }
+        int length = questionLength(buffer, HEADER_SIZE, size);
+        if (length < 0) {
+            return;
+        }
+        int server = ByteBuffer.wrap(from.getAddress().getAddress()).getInt();
+        long key = key(buffer, HEADER_SIZE, length, server, from.getPort());
+        DNSEntry entry = cache.get(key);
+        // late, repeated or not from the server asked
+        if (entry == null || entry.sent == 0 || !entry.matches(buffer, HEADER_SIZE, length, server, from.getPort())
+                || BitUtils.getUnsignedShort(buffer.getShort(0)) != entry.upstreamId) {
+            return;
+        }
+        responses++;
+        int ttl = -1;
+        int rcode = buffer.get(3) & 0x0F;
+        if (size > MAX_RESPONSE) {
+            // question only with TC set, the device asks again over tcp
+            truncated++;
+            size = HEADER_SIZE + length;
+            buffer.put(2, (byte) (buffer.get(2) | 0x02));
+            buffer.putShort(6, (short) 0);
+            buffer.putShort(8, (short) 0);
+            buffer.putShort(10, (short) 0);
+        } else if ((rcode == 0 || rcode == 3) && (buffer.get(2) & 0x02) == 0) {
+            // answers and name errors, failures are left to the next query
+            ttl = ttls(buffer, HEADER_SIZE + length, size, entry);
+        }
+        byte[] response = new byte[size];
+        buffer.position(0);
+        buffer.get(response);
+        entry.response = response;
+        entry.stored = now;
+        entry.sent = 0;
+        for (int i = 0; i < entry.waiters.size(); i++) {
+            DNSEntry.Waiter waiter = entry.waiters.get(i);
+            ByteBuffer out = reply(entry, waiter.id, now);
+            out.position(UDPSession.HEADER_SIZE + HEADER_SIZE);
+            out.put(waiter.question);
+            udp.reply(waiter.to, out, response.length);
+        }
+        entry.waiters.clear();
+        if (ttl > 0) {
+            entry.expires = now + ttl * 1000000000L;
+        } else {
+            uncacheable++;
+            cache.remove(entry.key);
+        }
+    }
+
+    // offsets of the record TTLs behind the question and the shortest one, -1 when there is none
+    private static int ttls(ByteBuffer buffer, int offset, int end, DNSEntry entry) {
+        int records = BitUtils.getUnsignedShort(buffer.getShort(6)) + BitUtils.getUnsignedShort(buffer.getShort(8))
+                + BitUtils.getUnsignedShort(buffer.getShort(10));
+        int[] ttls = new int[records];
+        int count = 0;
+        int min = Integer.MAX_VALUE;
+        int i = offset;
+        for (int r = 0; r < records; r++) {
+            i = skipName(buffer, i, end);
+            if (i < 0 || i + 10 > end) {
+                return -1;
+            }
+            if (BitUtils.getUnsignedShort(buffer.getShort(i)) != OPT) {
+                ttls[count++] = i + 4;
+                // one with the top bit set counts as 0
+                min = Math.min(min, Math.max(buffer.getInt(i + 4), 0));
+            }
+            i += 10 + BitUtils.getUnsignedShort(buffer.getShort(i + 8));
+            if (i > end) {
+                return -1;
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        entry.ttls = count == records ? ttls : Arrays.copyOf(ttls, count);
+        return min;
+    }
+
+    // end of a name in a response, which may point back at an earlier one
+    private static int skipName(ByteBuffer buffer, int i, int end) {
+        while (i < end) {
+            int label = buffer.get(i) & 0xFF;
+            if (label == 0) {
+                return i + 1;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                return i + 2;
+            }
+            if (label > 63) {
+                return -1;
+            }
+            i += 1 + label;
+        }
+        return -1;
+    }
+
+    // cache hit, the response goes back with the device's id and question
+    private void answer(PacketView view, DNSEntry entry, int id, long now) {
+        if (device == null) {
+            device = new UDPSession(0, view, null);
+        } else {
+            device.address(view);
+        }
+        ByteBuffer out = reply(entry, id, now);
+        ByteBuffer buffer = view.getBuffer();
+        int from = view.getUdpPayloadOffset() + HEADER_SIZE;
+        int to = UDPSession.HEADER_SIZE + HEADER_SIZE;
+        for (int i = 0; i < entry.question.length; i++) {
+            out.put(to + i, buffer.get(from + i));
+        }
+        udp.reply(device, out, entry.response.length);
+    }
+
+    // the response in a pooled buffer behind room for the headers, TTLs aged by its time in the cache
+    private ByteBuffer reply(DNSEntry entry, int id, long now) {
+        ByteBuffer out = pool.acquire();
+        out.position(UDPSession.HEADER_SIZE);
+        out.put(entry.response);
+        out.putShort(UDPSession.HEADER_SIZE, (short) id);
+        if (entry.ttls != null) {
+            int elapsed = (int) ((now - entry.stored) / 1000000000L);
+            for (int offset : entry.ttls) {
+                int at = UDPSession.HEADER_SIZE + offset;
+                out.putInt(at, Math.max(Math.max(out.getInt(at), 0) - elapsed, 0));
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void evicted(DNSEntry entry) {
+        evictions++;
+    }
+
+    public void close() {
+        cache.clear(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+            channel = null;
+        }
+    }
+
+    // port of the queries answered here, PORT unless a test moves it
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    // share of queries answered from the cache
+    public double getHitRate() {
+        long queries = hits + misses;
+        return queries == 0 ? 0 : (double) hits / queries;
+    }
+
+    // misses that waited on an upstream query already in flight
+    public long getJoined() {
+        return joined;
+    }
+
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    public long getResponses() {
+        return responses;
+    }
+
+    public long getTruncated() {
+        return truncated;
+    }
+
+    public long getUncacheable() {
+        return uncacheable;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,416 @@
+package com.innque.localvpn;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One shard of the flow handling. Owns a Selector, the queue of device packets for its flows
+ * and the TCBs and UDP sessions of every flow whose key hashes to it, so shards never share flow
+ * state. A single thread runs the loop and is the only one touching its flows and channels, other
+ * threads hand it packets and commands through lock free rings.
+ */
+public class EventLoop implements Runnable, RingBuffer.Handler<Runnable>, TimerWheel.Callback,
+        TCBTable.EvictionCallback {
+    private static final String TAG = "EventLoop";
+    private static final int BATCH = 64; // device packets handled per iteration
+    private static final int COMMAND_QUEUE_SIZE = 64;
+    private static final int READ_POOL_SIZE = 64;
+    // flow timeouts, nanoseconds
+    public static final long CONNECT_TIMEOUT = 30000000000L; // 30 s
+    // RFC 5382 keeps an established mapping at least 2 h 4 min, full tables evict idle flows first
+    public static final long IDLE_TIMEOUT = 7440000000000L; // 2 h 4 min
+    public static final long TIME_WAIT_TIMEOUT = 2000000000L; // 2 s, the device is local
+    public static final int FIN_RETRANSMITS = 5; // then the flow is reset
+    // a full table gives up an open flow for a new one only after this much quiet
+    public static final long EVICTION_IDLE = 60000000000L; // 60 s
+    private static final int EVICTION_SCAN = 16; // least recently used flows looked at
+    private static final int WHEEL_SLOTS = 512;
+    private static final long WHEEL_TICK = 100000000L; // 100 ms
+
+    private int index;
+    private Selector selector;
+    private RingBuffer<ByteBuffer> queue;
+    private RingBuffer<Runnable> commands;
+    private TCBTable tcbs;
+    // connect, idle, FIN and TIME_WAIT timeouts of the flows
+    private TimerWheel wheel;
+    // retransmit and delayed ack deadlines of the tcp flows
+    private TimerHeap deadlines;
+    private ConnectionSend send;
+    private ConnectionReceive receive;
+    private UDPForwarder udp;
+    private TunWriter tunWriter;
+    // the shard's own, only its thread acquires from them
+    private BufferPool headerPool;
+    private BufferPool readPool;
+    private Recycler recycler = new Recycler();
+    // true while the loop may block in select, the first producer to clear it wakes the selector
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    // counted by the producers that wake the selector, at most once per select
+    private final AtomicLong wakeups = new AtomicLong();
+    private long timeouts;
+    private long connectTimeouts;
+    private long idleTimeouts;
+    private long closingEvictions;
+    private long idleEvictions;
+    private long refused;
+
+    public EventLoop(int index, int queueSize, int maxFlows, TunWriter tunWriter,
+                     BufferPool pool, BufferPool headerPool, VpnService vpn) throws IOException {
+        // socket reads into buffers the size of the device's, from a pool of the loop's own
+        this(index, queueSize, maxFlows, tunWriter, pool, headerPool,
+                new BufferPool(READ_POOL_SIZE, pool.getBufferSize(), pool.isDirect()), vpn);
+    }
+
+    public EventLoop(int index, int queueSize, int maxFlows, TunWriter tunWriter,
+                     BufferPool pool, BufferPool headerPool, BufferPool readPool, VpnService vpn) throws IOException {
+        this.index = index;
+        this.tunWriter = tunWriter;
+        this.headerPool = headerPool;
+        this.readPool = readPool;
+        this.selector = Selector.open();
+        Wakeup wakeup = new Wakeup();
+        // only the tun reader puts packets in
+        this.queue = new RingBuffer<>(queueSize, false, wakeup);
+        this.commands = new RingBuffer<>(COMMAND_QUEUE_SIZE, true, wakeup);
+        this.tcbs = new TCBTable(maxFlows, this);
+        this.wheel = new TimerWheel(WHEEL_SLOTS, WHEEL_TICK, System.nanoTime());
+        this.deadlines = new TimerHeap(maxFlows);
+        this.send = new ConnectionSend(this, tunWriter, pool, headerPool, vpn);
+        this.receive = new ConnectionReceive(selector, tunWriter, readPool, ConnectionReceive.READ_BUDGET, send);
+        this.udp = new UDPForwarder(this, tunWriter, pool, UDPForwarder.MAX_SESSIONS, vpn);
+        this.receive.setUdp(udp);
+    }
+
+    // shard owning a flow, spreads neighbouring ports of one remote over the shards
+    public static int shard(long key, int shards) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % shards);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                commands.drain(this, COMMAND_QUEUE_SIZE);
+                queue.drain(send, BATCH);
+                select(timers(System.nanoTime()));
+                receive.processSelectedKeys();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "run: ", e);
+        }
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            send.release(buffer);
+        }
+        closeAll();
+    }
+
+    // retransmits flows whose timer ran out, sends delayed acks that are due and expires
+    // flow timeouts, returns the time until the next timer runs out or 0 when none is armed
+    private long timers(long now) {
+        TCB tcb;
+        // only flows with a deadline passed, in deadline order
+        while ((tcb = deadlines.peek()) != null && tcb.heapDeadline - now <= 0) {
+            RetransmitQueue retransmitQueue = tcb.retransmitQueue;
+            if (retransmitQueue.expired(now)) {
+                timeouts++;
+                // carries the delayed ack too
+                send.piggyback(tcb);
+                tunWriter.offer(retransmitQueue.retransmit(tcb, tcb.mss));
+            }
+            if (tcb.ackDeadline != 0 && now >= tcb.ackDeadline) {
+                send.sendAck(tcb);
+            }
+            deadlines.update(tcb);
+        }
+        wheel.expire(now, this);
+        long next = Long.MAX_VALUE;
+        tcb = deadlines.peek();
+        if (tcb != null) {
+            next = tcb.heapDeadline;
+        }
+        // an idle loop sleeps until its first flow timeout, not tick by tick
+        long timeout = wheel.nextDeadline();
+        if (timeout != 0 && (next == Long.MAX_VALUE || timeout - next < 0)) {
+            next = timeout;
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+    }
+
+    // flow timeout from the wheel, what ran out depends on the state
+    @Override
+    public void expired(Flow flow, long now) {
+        if (flow instanceof UDPSession) {
+            udp.expired((UDPSession) flow, now);
+            return;
+        }
+        TCB tcb = (TCB) flow;
+        switch (tcb.status) {
+            case SYN_SENT:
+                connectTimeouts++;
+                send.reset(tcb);
+                return;
+            case TIME_WAIT:
+                closeTCB(tcb);
+                return;
+            case FIN_WAIT:
+            case LAST_ACK:
+                if (tcb.inFlight() > 0) {
+                    // our FIN is not acked, data before it has its own timer
+                    if (tcb.retransmitQueue.isEmpty()) {
+                        if (++tcb.finRetransmits > FIN_RETRANSMITS) {
+                            send.reset(tcb);
+                            return;
+                        }
+                        send.finAgain(tcb);
+                    }
+                    schedule(tcb, now + (tcb.retransmitQueue.getRto() << tcb.finRetransmits));
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        // activity doesn't move the timer, it is checked when the timer runs out
+        long idle = now - tcb.lastActivity;
+        if (idle >= IDLE_TIMEOUT) {
+            idleTimeouts++;
+            send.reset(tcb);
+        } else {
+            schedule(tcb, tcb.lastActivity + IDLE_TIMEOUT);
+        }
+    }
+
+    private void select(long timeout) throws IOException {
+        selecting.set(true);
+        // re-check after publishing the flag, anything offered later wakes the selector
+        if (queue.isEmpty() && commands.isEmpty()) {
+            if (timeout > 0) {
+                // rounded up to the next millisecond, select(0) would block
+                selector.select((timeout + 999999) / 1000000);
+            } else {
+                selector.select();
+            }
+        } else {
+            selector.selectNow();
+        }
+        selecting.set(false);
+    }
+
+    @Override
+    public void onElement(Runnable command) {
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "command: ", e);
+        }
+    }
+
+    // from the tun reader, false when the shard is behind and the packet is dropped by the caller
+    public boolean offer(ByteBuffer packet) {
+        return queue.offer(packet);
+    }
+
+    // from any thread, runs on the loop thread before its next select
+    public void execute(Runnable command) {
+        commands.put(command);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public RingBuffer<ByteBuffer> getQueue() {
+        return queue;
+    }
+
+    public ConnectionSend getSend() {
+        return send;
+    }
+
+    public ConnectionReceive getReceive() {
+        return receive;
+    }
+
+    public UDPForwarder getUdp() {
+        return udp;
+    }
+
+    public BufferPool getHeaderPool() {
+        return headerPool;
+    }
+
+    public BufferPool getReadPool() {
+        return readPool;
+    }
+
+    public long getWakeups() {
+        return wakeups.get();
+    }
+
+    // retransmissions after a timeout, fast retransmits are counted by ConnectionSend
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getConnectTimeouts() {
+        return connectTimeouts;
+    }
+
+    public long getIdleTimeouts() {
+        return idleTimeouts;
+    }
+
+    // flows given up for new ones when the table was full, already closing and idle open ones
+    public long getClosingEvictions() {
+        return closingEvictions;
+    }
+
+    public long getIdleEvictions() {
+        return idleEvictions;
+    }
+
+    // new flows turned away because every flow in a full table was busy
+    public long getRefused() {
+        return refused;
+    }
+
+    // flow table, loop thread only
+
+    public TCB getTCB(long key) {
+        return tcbs.get(key);
+    }
+
+    public void putTCB(long key, TCB tcb) {
+        tcb.setRecycler(recycler);
+        tcbs.put(key, tcb);
+    }
+
+    // next timeout of a flow, replaces the one it had
+    public void schedule(Flow flow, long deadline) {
+        wheel.schedule(flow, deadline);
+    }
+
+    public void cancel(Flow flow) {
+        wheel.cancel(flow);
+    }
+
+    // retransmit and delayed ack deadlines of a flow changed, called after each packet or key it handled
+    public void rearm(TCB tcb) {
+        if (tcb.status == TCB.TCBStatus.CLOSED) {
+            deadlines.remove(tcb);
+        } else {
+            deadlines.update(tcb);
+        }
+    }
+
+    // flow is done, its socket and buffers are freed right away
+    public void closeTCB(TCB tcb) {
+        if (tcb.status == TCB.TCBStatus.CLOSED) {
+            return;
+        }
+        wheel.cancel(tcb);
+        deadlines.remove(tcb);
+        tcbs.remove(tcb.key);
+        tcb.close();
+    }
+
+    // same, the remote is reset rather than closed
+    public void abortTCB(TCB tcb) {
+        if (tcb.status == TCB.TCBStatus.CLOSED) {
+            return;
+        }
+        wheel.cancel(tcb);
+        deadlines.remove(tcb);
+        tcbs.remove(tcb.key);
+        tcb.abort();
+    }
+
+    public void closeAll() {
+        tcbs.clear(TCB.CLOSE);
+        deadlines.clear();
+        udp.closeAll();
+    }
+
+    // room for one more flow, false when the table is full of busy flows and the new one is refused
+    public boolean makeRoom(long now) {
+        if (!tcbs.isFull()) {
+            return true;
+        }
+        TCB victim = tcbs.victim(EVICTION_SCAN);
+        if (TCBTable.rank(victim) == 3 && now - victim.lastActivity < EVICTION_IDLE) {
+            refused++;
+            return false;
+        }
+        tcbs.remove(victim.key);
+        evicted(victim);
+        return true;
+    }
+
+    // flow pushed out of a full table, the device learns about it unless it closed already
+    @Override
+    public void evicted(TCB tcb) {
+        if (TCBTable.rank(tcb) == 3) {
+            idleEvictions++;
+        } else {
+            closingEvictions++;
+        }
+        if (tcb.status == TCB.TCBStatus.TIME_WAIT || tcb.status == TCB.TCBStatus.CLOSED) {
+            closeTCB(tcb);
+        } else {
+            send.reset(tcb);
+        }
+    }
+
+    public int getFlowCount() {
+        return tcbs.size();
+    }
+
+    public int getMaxFlows() {
+        return tcbs.getMaxSize();
+    }
+
+    public int getTimerCount() {
+        return wheel.size();
+    }
+
+    // flows with a retransmit or delayed ack deadline
+    public int getDeadlineCount() {
+        return deadlines.size();
+    }
+
+    /**
+     * Rings feeding the loop wake its selector instead of unparking a consumer,
+     * at most once per select.
+     */
+    private class Wakeup extends WaitStrategy {
+        @Override
+        public void await(RingBuffer<?> ring) {
+            try {
+                select(0);
+            } catch (IOException e) {
+                Log.e(TAG, "select: ", e);
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (selecting.compareAndSet(true, false)) {
+                wakeups.incrementAndGet();
+                selector.wakeup();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What a TCP connection and a UDP session share: the key, the links of the flow table and
+ * timer wheel, and the ip header of everything sent back to the device.
+ */
+public class Flow {
+    public long key;
+    // last packet either way, for the idle timeout
+    public long lastActivity;
+
+    // ip header fields of replies to the device
+    // version, tos, total length, identification, flags and fragment offset
+    public long ipHeaderStart;
+    public short ttlAndProtocol;
+    public int sourceAddress;
+    public int destinationAddress;
+    public int ports; // source port in the upper 16 bits
+    // ip checksum of everything but the total length, summed once at setup
+    public long ipHeaderSum;
+
+    // access order links, owned by FlowTable
+    Flow older;
+    Flow newer;
+    // timeout links, owned by TimerWheel, timerDeadline is 0 when no timer is set
+    Flow timerPrev;
+    Flow timerNext;
+    int timerSlot;
+    long timerDeadline;
+
+    public Flow(long key) {
+        this.key = key;
+    }
+
+    // reply ip header from the fields, with its checksum
+    public void ipHeader(ByteBuffer header, int totalLength) {
+        header.putLong(0, ipHeaderStart);
+        header.putShort(2, (short) totalLength);
+        header.putShort(8, ttlAndProtocol);
+        header.putShort(10, (short) (~BitUtils.fold(ipHeaderSum + totalLength) & 0xFFFF));
+        header.putInt(12, sourceAddress);
+        header.putInt(16, destinationAddress);
+    }
+}
@@ -0,0 +1,194 @@
+package com.innque.localvpn;
+
+/**
+ * Open addressing table from flow key to flow, linear probing over primitive long keys.
+ * Entries are also chained in access order through the flow itself so the least recently
+ * used flow can be evicted without allocating. The arrays start small and double with
+ * the number of flows, up to what maxSize needs.
+ */
+public class FlowTable<F extends Flow> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Flow[] values; // null marks a free slot
+    private int mask;
+    private int size;
+    private int maxSize;
+    private EvictionCallback<? super F> callback;
+
+    // access order, eldest is the next to evict
+    private F eldest;
+    private F youngest;
+
+    public FlowTable(int maxSize, EvictionCallback<? super F> callback) {
+        this.maxSize = maxSize;
+        this.callback = callback;
+        this.keys = new long[MIN_CAPACITY];
+        this.values = new Flow[MIN_CAPACITY];
+        this.mask = MIN_CAPACITY - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public F get(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        F flow = (F) values[index];
+        unlink(flow);
+        link(flow);
+        return flow;
+    }
+
+    public void put(long key, F flow) {
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                unlink(values[index]);
+                values[index] = flow;
+                link(flow);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = flow;
+        link(flow);
+        size++;
+        // keep the load factor under 0.5 so probes stay short
+        if (size * 2 > mask + 1) {
+            resize((mask + 1) * 2);
+        }
+        if (size > maxSize) {
+            F evicted = eldest;
+            remove(evicted.key);
+            callback.evicted(evicted);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public F remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        F flow = (F) values[index];
+        unlink(flow);
+        size--;
+        // backward shift deletion, pull later entries of the probe run into the hole
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            // move the entry if its home slot is not between the hole and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[hole] = null;
+        return flow;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Flow[] oldValues = values;
+        keys = new long[capacity];
+        values = new Flow[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isFull() {
+        return size >= maxSize;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // least recently used entry, walk on with newer
+    public F eldest() {
+        return eldest;
+    }
+
+    @SuppressWarnings("unchecked")
+    public F newer(F flow) {
+        return (F) flow.newer;
+    }
+
+    // removes every entry, eldest first
+    public void clear(EvictionCallback<? super F> callback) {
+        while (eldest != null) {
+            F flow = eldest;
+            remove(flow.key);
+            callback.evicted(flow);
+        }
+    }
+
+    private void link(F flow) {
+        flow.older = youngest;
+        flow.newer = null;
+        if (youngest != null) {
+            youngest.newer = flow;
+        } else {
+            eldest = flow;
+        }
+        youngest = flow;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void unlink(Flow flow) {
+        if (flow.older != null) {
+            flow.older.newer = flow.newer;
+        } else {
+            eldest = (F) flow.newer;
+        }
+        if (flow.newer != null) {
+            flow.newer.older = flow.older;
+        } else {
+            youngest = (F) flow.older;
+        }
+        flow.older = null;
+        flow.newer = null;
+    }
+
+    public interface EvictionCallback<F> {
+        void evicted(F flow);
+    }
+}
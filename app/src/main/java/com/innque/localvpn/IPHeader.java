@@ -15,17 +15,9 @@ public class IPHeader {
 
     // get calculated checksum
     public int checksum() {
-        ByteBuffer buffer = this.buffer.duplicate();
-        int length = IPHeader.SIZE;
         // clear the previous checksum
         this.setChecksum((short) 0);
-        buffer.position(0);
-        int sum = 0;
-        while (length > 0) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            length -= 2;
-        }
-        return (int) BitUtils.checksum(sum, 16);
+        return BitUtils.checksum(this.buffer, 0, IPHeader.SIZE, 0);
     }
 
     public void setVersion(byte version) {
@@ -129,6 +121,14 @@ public class IPHeader {
         return BitUtils.getUnsignedShort(this.buffer.getShort());
     }
 
+    public void setSourceAddress(int sourceAddress) {
+        this.buffer.putInt(12, sourceAddress);
+    }
+
+    public int getSourceAddressInt() {
+        return this.buffer.getInt(12);
+    }
+
     public void setSourceAddress(InetAddress sourceAddress) {
         this.buffer.position(12);
         this.buffer.put(sourceAddress.getAddress());
@@ -164,6 +164,14 @@ public class IPHeader {
         return addressBytes;
     }
 
+    public void setDestinationAddress(int destinationAddress) {
+        this.buffer.putInt(16, destinationAddress);
+    }
+
+    public int getDestinationAddressInt() {
+        return this.buffer.getInt(16);
+    }
+
     public InetAddress getDestinationAddress() {
         try {
             return InetAddress.getByAddress(this.getDestinationAddressRaw());
@@ -174,12 +182,23 @@ public class IPHeader {
     }
 
     public void swapAddress() {
-        InetAddress source = this.getSourceAddress();
-        InetAddress destination = this.getDestinationAddress();
+        int source = this.getSourceAddressInt();
+        int destination = this.getDestinationAddressInt();
         this.setDestinationAddress(source);
         this.setSourceAddress(destination);
     }
 
+    // pseudo header sum of both addresses, for the tcp/udp checksum
+    public long addressSum() {
+        int source = this.getSourceAddressInt();
+        int destination = this.getDestinationAddressInt();
+        return (source >>> 16) + (source & 0xFFFF) + (destination >>> 16) + (destination & 0xFFFF);
+    }
+
+    public static String toString(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("IPHeader{");
@@ -193,8 +212,8 @@ public class IPHeader {
         sb.append(",ttl:").append(getTTL());
         sb.append(",protocol:").append(getProtocol());
         sb.append(",checksum:").append(getChecksum());
-        sb.append(",sourceAddress:").append('"' + getSourceAddress().getHostAddress() + '"');
-        sb.append(",destinationAddress:").append('"' + getDestinationAddress().getHostAddress() + '"');
+        sb.append(",sourceAddress:").append('"' + toString(getSourceAddressInt()) + '"');
+        sb.append(",destinationAddress:").append('"' + toString(getDestinationAddressInt()) + '"');
         sb.append("}");
         return sb.toString();
     }
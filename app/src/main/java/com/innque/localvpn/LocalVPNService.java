@@ -15,7 +15,7 @@ public class LocalVPNService extends VpnService {
     // VPN Config
     private static final String VPN_ADDRESS = "10.0.0.2"; // Only IPv4 support for now
     private static final String VPN_ROUTE = "0.0.0.0"; // default gateway
-    private static final int MTU = 1500; // maximum transport unit
+    public static final int MTU = 1500; // maximum transport unit, the tun packets the rest is sized for
     // local variable
     private ParcelFileDescriptor vpnProfile = null;
     private Thread thread;
@@ -67,6 +67,8 @@ public class LocalVPNService extends VpnService {
         builder.addRoute(VPN_ROUTE, 0);
         //Set the maximum transmission unit (MTU) of the VPN interface.
         builder.setMtu(MTU);
+        // the tun reader blocks in read instead of polling
+        builder.setBlocking(true);
         builder.setSession(getString(R.string.app_name));
         // Build configure intent
         Intent configure = new Intent(this, MainActivity.class);
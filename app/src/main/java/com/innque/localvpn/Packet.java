@@ -9,20 +9,32 @@ import java.nio.ByteBuffer;
  * Representation Packet
  */
 
-public class Packet {
+public class Packet extends PooledBuffer {
     private static final String TAG = "ConnectionIn";
 
     public IPHeader ipHeader;
     public TCPHeader tcpHeader;
-    public ByteBuffer buffer;
+
+    // true once update computed the checksums, swapping addresses/ports keeps them valid
+    private boolean checksumValid;
 
 
     public Packet(ByteBuffer buffer) {
-        this.buffer = buffer;
+        this(buffer, null);
+    }
+
+    public Packet(ByteBuffer buffer, BufferPool pool) {
+        super(buffer, pool);
         this.ipHeader = new IPHeader(buffer);
         this.tcpHeader = new TCPHeader(buffer, this.ipHeader);
     }
 
+    @Override
+    public Packet retain() {
+        super.retain();
+        return this;
+    }
+
 
     public void swapSourceAndDestination() {
         this.ipHeader.swapAddress();
@@ -30,15 +42,98 @@ public class Packet {
     }
 
     public void update(byte flags, long sequence, long acknowledge, int payloadSize) {
+        if (this.checksumValid && payloadSize == 0 && this.isEmpty()) {
+            // header only changes, adjust the existing checksum
+            this.updateIncremental(flags, sequence, acknowledge);
+            return;
+        }
+        this.update(flags, sequence, acknowledge, this.buffer, IPHeader.SIZE + TCPHeader.SIZE, payloadSize);
+    }
+
+    // payload lives in another buffer and is sent behind this header
+    public void update(byte flags, long sequence, long acknowledge, ByteBuffer payload, int payloadOffset, int payloadSize) {
         this.tcpHeader.setFlags(flags);
         this.tcpHeader.setSequenceNumber(sequence);
         this.tcpHeader.setAcknowledgmentNumber(acknowledge);
         // Reset header size, since we don't need options
         this.tcpHeader.setOffset(TCPHeader.SIZE);
-        this.tcpHeader.setChecksum(this.tcpHeader.checksum(payloadSize));
+        this.tcpHeader.setChecksum(this.tcpHeader.checksum(payload, payloadOffset, payloadSize));
         int totalLength = IPHeader.SIZE + TCPHeader.SIZE + payloadSize;
         ipHeader.setTotalLength(totalLength);
         ipHeader.setChecksum(ipHeader.checksum());
+        this.checksumValid = true;
+    }
+
+    // same as update, with the sums of the fixed header fields cached by the caller,
+    // only sequence/ack/flags/lengths and the payload are summed here
+    public void update(byte flags, long sequence, long acknowledge, ByteBuffer payload, int payloadOffset, int payloadSize,
+                       long fixedSum, long ipFixedSum) {
+        this.update(flags, sequence, acknowledge, 0, payload, payloadOffset, payloadSize, fixedSum, ipFixedSum);
+    }
+
+    // the first optionsLength bytes of the payload are tcp options, sent right behind this header
+    public void update(byte flags, long sequence, long acknowledge, int optionsLength,
+                       ByteBuffer payload, int payloadOffset, int payloadSize, long fixedSum, long ipFixedSum) {
+        this.tcpHeader.setFlags(flags);
+        this.tcpHeader.setSequenceNumber(sequence);
+        this.tcpHeader.setAcknowledgmentNumber(acknowledge);
+        this.tcpHeader.setOffset(TCPHeader.SIZE + optionsLength);
+        long sum = fixedSum + TCPHeader.SIZE + payloadSize;
+        sum += BitUtils.getUnsignedShort(this.buffer.getShort(IPHeader.SIZE + 12)); // offset and flags
+        sum += ((sequence >>> 16) & 0xFFFF) + (sequence & 0xFFFF);
+        sum += ((acknowledge >>> 16) & 0xFFFF) + (acknowledge & 0xFFFF);
+        this.tcpHeader.setChecksum(BitUtils.checksum(payload, payloadOffset, payloadSize, sum));
+        int totalLength = IPHeader.SIZE + TCPHeader.SIZE + payloadSize;
+        ipHeader.setTotalLength(totalLength);
+        ipHeader.setChecksum(~BitUtils.fold(ipFixedSum + totalLength) & 0xFFFF);
+        this.checksumValid = true;
+    }
+
+    // partial tcp checksum of what never changes for a flow:
+    // pseudo header addresses and protocol, ports, window and urgent pointer
+    public long fixedSum() {
+        return this.ipHeader.addressSum() + this.ipHeader.getProtocol()
+                + BitUtils.sum(this.buffer, IPHeader.SIZE, 4)
+                + BitUtils.sum(this.buffer, IPHeader.SIZE + 14, 2)
+                + BitUtils.sum(this.buffer, IPHeader.SIZE + 18, 2);
+    }
+
+    // partial ip checksum, everything but total length and the checksum itself
+    public long ipFixedSum() {
+        return BitUtils.sum(this.buffer, 0, 2)
+                + BitUtils.sum(this.buffer, 4, 6)
+                + BitUtils.sum(this.buffer, 12, 8);
+    }
+
+    // lengths are unchanged, so only the tcp checksum moves and the ip checksum stays as is
+    private void updateIncremental(byte flags, long sequence, long acknowledge) {
+        int checksum = this.tcpHeader.getChecksum();
+
+        int offsetAndFlags = BitUtils.getUnsignedShort(this.buffer.getShort(IPHeader.SIZE + 12));
+        this.tcpHeader.setFlags(flags);
+        checksum = BitUtils.checksumUpdate(checksum, offsetAndFlags,
+                BitUtils.getUnsignedShort(this.buffer.getShort(IPHeader.SIZE + 12)));
+
+        int oldSequence = this.buffer.getInt(IPHeader.SIZE + 4);
+        this.tcpHeader.setSequenceNumber(sequence);
+        checksum = BitUtils.checksumUpdate32(checksum, oldSequence, (int) sequence);
+
+        int oldAcknowledge = this.buffer.getInt(IPHeader.SIZE + 8);
+        this.tcpHeader.setAcknowledgmentNumber(acknowledge);
+        checksum = BitUtils.checksumUpdate32(checksum, oldAcknowledge, (int) acknowledge);
+
+        this.tcpHeader.setChecksum(checksum);
+    }
+
+    // header without options or payload
+    private boolean isEmpty() {
+        return this.tcpHeader.getOffset() == TCPHeader.SIZE
+                && this.ipHeader.getTotalLength() == IPHeader.SIZE + TCPHeader.SIZE;
+    }
+
+    // must be called after changing header fields other than through update
+    public void invalidateChecksum() {
+        this.checksumValid = false;
     }
 
     public byte[] getData() {
@@ -0,0 +1,268 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read only view of an IPv4 TCP or UDP packet that can be pointed at any buffer and offset.
+ * Uses absolute reads only, so one instance per thread can parse every packet without allocating
+ * or moving the buffer position.
+ */
+public class PacketView {
+    public static final int TCP = 6;
+    public static final int UDP = 17;
+    public static final int UDP_HEADER_SIZE = 8;
+    // tcp option kinds
+    public static final int MSS = 2;
+    public static final int WINDOW_SCALE = 3;
+
+    private ByteBuffer buffer;
+    private int offset; // start of the ip header
+    private int transportOffset; // start of the tcp or udp header
+
+    public PacketView wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position());
+    }
+
+    public PacketView wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.transportOffset = offset + getIpHeaderLength();
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getTransportOffset() {
+        return transportOffset;
+    }
+
+    // IP header
+
+    public int getVersion() {
+        return BitUtils.getUnsignedByte(buffer.get(offset)) >> 4;
+    }
+
+    // IHL in bytes
+    public int getIpHeaderLength() {
+        return (buffer.get(offset) & 0x0F) * 4;
+    }
+
+    public int getType() {
+        return BitUtils.getUnsignedByte(buffer.get(offset + 1));
+    }
+
+    public int getTotalLength() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 2));
+    }
+
+    public int getIdentification() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 4));
+    }
+
+    public int getFlags() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 6)) >> 13;
+    }
+
+    public int getFragmentOffset() {
+        return buffer.getShort(offset + 6) & 0x1FFF;
+    }
+
+    public int getTTL() {
+        return BitUtils.getUnsignedByte(buffer.get(offset + 8));
+    }
+
+    public int getProtocol() {
+        return BitUtils.getUnsignedByte(buffer.get(offset + 9));
+    }
+
+    public int getIpChecksum() {
+        return BitUtils.getUnsignedShort(buffer.getShort(offset + 10));
+    }
+
+    public int getSourceAddress() {
+        return buffer.getInt(offset + 12);
+    }
+
+    public int getDestinationAddress() {
+        return buffer.getInt(offset + 16);
+    }
+
+    public boolean isTCP() {
+        return getVersion() == 4 && getProtocol() == TCP;
+    }
+
+    public boolean isUDP() {
+        return getVersion() == 4 && getProtocol() == UDP;
+    }
+
+    // TCP header, the ports are at the same place in a udp header
+
+    public int getSourcePort() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset));
+    }
+
+    public int getDestinationPort() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset + 2));
+    }
+
+    public long getSequenceNumber() {
+        return BitUtils.getUnsignedInt(buffer.getInt(transportOffset + 4));
+    }
+
+    public long getAcknowledgmentNumber() {
+        return BitUtils.getUnsignedInt(buffer.getInt(transportOffset + 8));
+    }
+
+    // data offset in bytes
+    public int getTcpHeaderLength() {
+        return (BitUtils.getUnsignedByte(buffer.get(transportOffset + 12)) >> 4) * 4;
+    }
+
+    public int getTcpFlags() {
+        return buffer.get(transportOffset + 13) & 0x3F;
+    }
+
+    public boolean isFIN() {
+        return (getTcpFlags() & TCPHeader.FIN) != 0;
+    }
+
+    public boolean isSYN() {
+        return (getTcpFlags() & TCPHeader.SYN) != 0;
+    }
+
+    public boolean isRST() {
+        return (getTcpFlags() & TCPHeader.RST) != 0;
+    }
+
+    public boolean isPSH() {
+        return (getTcpFlags() & TCPHeader.PSH) != 0;
+    }
+
+    public boolean isACK() {
+        return (getTcpFlags() & TCPHeader.ACK) != 0;
+    }
+
+    public boolean isURG() {
+        return (getTcpFlags() & TCPHeader.URG) != 0;
+    }
+
+    public int getWindow() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset + 14));
+    }
+
+    public int getTcpChecksum() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset + 16));
+    }
+
+    public int getUrgentPointer() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset + 18));
+    }
+
+    // offset of a tcp option, -1 when the header doesn't carry it
+    public int option(int kind) {
+        int end = getPayloadOffset();
+        int i = transportOffset + TCPHeader.SIZE;
+        while (i < end) {
+            int current = BitUtils.getUnsignedByte(buffer.get(i));
+            if (current == 0) {
+                break; // end of options
+            }
+            if (current == 1) {
+                i++; // no operation
+                continue;
+            }
+            if (i + 1 >= end) {
+                break;
+            }
+            int length = BitUtils.getUnsignedByte(buffer.get(i + 1));
+            if (length < 2) {
+                break;
+            }
+            if (current == kind) {
+                return i;
+            }
+            i += length;
+        }
+        return -1;
+    }
+
+    // maximum segment size from a SYN, -1 when not given
+    public int getMss() {
+        int option = option(MSS);
+        if (option < 0) {
+            return -1;
+        }
+        return BitUtils.getUnsignedShort(buffer.getShort(option + 2));
+    }
+
+    // window scale shift from a SYN, -1 when not offered
+    public int getWindowScale() {
+        int option = option(WINDOW_SCALE);
+        if (option < 0) {
+            return -1;
+        }
+        return Math.min(BitUtils.getUnsignedByte(buffer.get(option + 2)), 14);
+    }
+
+    // Payload
+
+    // ip + tcp header, options included
+    public int getHeaderLength() {
+        return getIpHeaderLength() + getTcpHeaderLength();
+    }
+
+    public int getPayloadOffset() {
+        return transportOffset + getTcpHeaderLength();
+    }
+
+    public int getPayloadSize() {
+        return getTotalLength() - getHeaderLength();
+    }
+
+    // positions the underlying buffer on the payload, no copy
+    public ByteBuffer payload() {
+        int start = getPayloadOffset();
+        buffer.limit(offset + getTotalLength());
+        buffer.position(start);
+        return buffer;
+    }
+
+    // UDP header
+
+    public int getUdpLength() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset + 4));
+    }
+
+    public int getUdpChecksum() {
+        return BitUtils.getUnsignedShort(buffer.getShort(transportOffset + 6));
+    }
+
+    public int getUdpPayloadOffset() {
+        return transportOffset + UDP_HEADER_SIZE;
+    }
+
+    // bounded by the ip total length, a udp length past it is not trusted
+    public int getUdpPayloadSize() {
+        int size = Math.min(getUdpLength(), offset + getTotalLength() - transportOffset) - UDP_HEADER_SIZE;
+        return Math.max(size, 0);
+    }
+
+    // positions the underlying buffer on the datagram, no copy
+    public ByteBuffer udpPayload() {
+        int start = getUdpPayloadOffset();
+        buffer.limit(start + getUdpPayloadSize());
+        buffer.position(start);
+        return buffer;
+    }
+
+    // flow key of the packet, seen from the device, for TCP and UDP alike
+    public long flowKey() {
+        return TCB.key(getDestinationAddress(), getDestinationPort(), getSourcePort());
+    }
+}
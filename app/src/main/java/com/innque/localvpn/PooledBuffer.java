@@ -0,0 +1,66 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted buffer, goes back to its pool when the last holder releases it
+ */
+public class PooledBuffer {
+    public ByteBuffer buffer;
+
+    // owner of the buffer, null when the buffer is not pooled
+    private BufferPool pool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    // true when the pool takes back this wrapper with its buffer, see BufferPool.acquirePooled
+    private boolean wrapped;
+    private ByteBuffer view;
+
+    public PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool, boolean wrapped) {
+        this(buffer, pool);
+        this.wrapped = wrapped;
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    // take another reference, every holder must call release once done with the buffer
+    public PooledBuffer retain() {
+        this.refCount.incrementAndGet();
+        return this;
+    }
+
+    // drop a reference, the buffer goes back to the pool when the last one is released
+    public void release() {
+        if (this.refCount.decrementAndGet() == 0 && this.pool != null) {
+            if (this.wrapped) {
+                this.pool.recycle(this);
+            } else {
+                this.pool.release(this.buffer);
+            }
+        }
+    }
+
+    // cleared view of the buffer with its own position and limit, for the owning thread to read
+    // through while the tun writer moves those of buffer, made once per wrapper
+    public ByteBuffer view() {
+        if (this.view == null) {
+            this.view = this.buffer.duplicate();
+        }
+        this.view.clear();
+        return this.view;
+    }
+
+    // handed out again by the pool, only its owner calls this
+    PooledBuffer reuse() {
+        this.refCount.set(1);
+        this.buffer.clear();
+        return this;
+    }
+}
@@ -0,0 +1,44 @@
+package com.innque.localvpn;
+
+/**
+ * What the tcp flows of one event loop reuse per packet instead of allocating: segments, which
+ * the tun writer hands back once written, and retransmit entries, which never leave the loop.
+ */
+public class Recycler {
+    private static final int SEGMENTS = 4096; // what the tun queue may hold
+    private static final int ENTRIES = 1024;
+
+    // only the tun writer releases segments
+    private final RingBuffer<Segment> segments = new RingBuffer<>(SEGMENTS, false, new WaitStrategy.Yielding());
+    // loop thread only, linked through their next
+    private RetransmitQueue.Entry entries;
+    private int entryCount;
+
+    // empty segment that comes back here once released
+    public Segment segment() {
+        Segment segment = segments.poll();
+        return segment != null ? segment : new Segment(segments);
+    }
+
+    RetransmitQueue.Entry entry() {
+        RetransmitQueue.Entry entry = entries;
+        if (entry == null) {
+            return new RetransmitQueue.Entry();
+        }
+        entries = entry.next;
+        entry.next = null;
+        entryCount--;
+        return entry;
+    }
+
+    // dropped when enough are kept already
+    void free(RetransmitQueue.Entry entry) {
+        entry.payload = null;
+        entry.data = null;
+        if (entryCount < ENTRIES) {
+            entry.next = entries;
+            entries = entry;
+            entryCount++;
+        }
+    }
+}
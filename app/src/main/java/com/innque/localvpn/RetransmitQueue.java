@@ -0,0 +1,211 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Data sent to the device and not acked yet, trimmed by its acks, with the RTT estimate
+ * (RFC 6298) that drives the retransmission timeout. Owned by the flow's event loop.
+ */
+public class RetransmitQueue {
+    public static final long INITIAL_RTO = 1000000000L; // 1 s
+    public static final long MIN_RTO = 200000000L; // 200 ms, the device is local
+    public static final long MAX_RTO = 60000000000L; // 60 s
+    public static final int DUPLICATE_ACKS = 3; // fast retransmit threshold
+    private static final long CLOCK_GRANULARITY = 1000000L; // 1 ms
+
+    /**
+     * One socket read, all of its segments share the read buffer
+     */
+    static class Entry {
+        PooledBuffer payload;
+        // own view of the read buffer, the tun writer moves the limit of the shared one
+        ByteBuffer data;
+        int offset;
+        int length;
+        long sequence;
+        Entry next;
+    }
+
+    // where entries come from and go back to, null when they are allocated and left to the gc
+    public Recycler recycler;
+    // oldest first, null while nothing is in flight, an idle flow keeps only the estimate
+    private Entry head;
+    private Entry tail;
+    private int bytes;
+
+    // rtt estimate, in nanoseconds
+    private long srtt;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+    // one segment is timed at a time, never a retransmitted one
+    private long timedSequence;
+    private long timedAt;
+    private boolean timing;
+    // retransmission timer, 0 when stopped
+    private long deadline;
+    private int duplicateAcks;
+
+    // counters
+    private long retransmits;
+    private long fastRetransmits;
+    private long timeouts;
+
+    // takes over the caller's reference on payload
+    public void add(PooledBuffer payload, int offset, int length, long sequence, long now) {
+        Entry entry = recycler == null ? new Entry() : recycler.entry();
+        entry.payload = payload;
+        entry.data = payload.view();
+        entry.offset = offset;
+        entry.length = length;
+        entry.sequence = sequence & 0xFFFFFFFFL;
+        if (tail == null) {
+            head = entry;
+        } else {
+            tail.next = entry;
+        }
+        tail = entry;
+        bytes += length;
+        if (!timing) {
+            timing = true;
+            timedSequence = (sequence + length) & 0xFFFFFFFFL;
+            timedAt = now;
+        }
+        if (deadline == 0) {
+            deadline = now + rto;
+        }
+    }
+
+    // device ack, true when it is the duplicate that triggers a fast retransmit
+    public boolean acknowledge(long ack, boolean duplicateCandidate, long now) {
+        Entry entry = head;
+        if (entry == null) {
+            return false;
+        }
+        int acked = (int) (ack - entry.sequence);
+        if (acked <= 0) {
+            if (acked == 0 && duplicateCandidate && ++duplicateAcks == DUPLICATE_ACKS) {
+                fastRetransmits++;
+                retransmits++;
+                timing = false;
+                return true;
+            }
+            return false;
+        }
+        duplicateAcks = 0;
+        while (entry != null && acked > 0) {
+            int length = Math.min(acked, entry.length);
+            entry.offset += length;
+            entry.length -= length;
+            entry.sequence = (entry.sequence + length) & 0xFFFFFFFFL;
+            bytes -= length;
+            acked -= length;
+            if (entry.length == 0) {
+                entry = poll();
+            }
+        }
+        if (timing && (int) (ack - timedSequence) >= 0) {
+            sample(now - timedAt);
+            timing = false;
+        }
+        // restart the timer for what is left
+        if (head == null) {
+            deadline = 0;
+        } else {
+            deadline = now + rto;
+        }
+        return false;
+    }
+
+    private void sample(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar)));
+    }
+
+    // true when the timer ran out, the timeout backs off until the next sample
+    public boolean expired(long now) {
+        if (deadline == 0 || now < deadline) {
+            return false;
+        }
+        rto = Math.min(MAX_RTO, rto * 2);
+        deadline = now + rto;
+        timing = false;
+        duplicateAcks = 0;
+        timeouts++;
+        retransmits++;
+        return true;
+    }
+
+    // the earliest unacked segment again, at most mss bytes
+    public Segment retransmit(TCB tcb, int mss) {
+        Entry entry = head;
+        int length = Math.min(mss, entry.length);
+        entry.payload.retain();
+        return tcb.segment((byte) (TCPHeader.PSH + TCPHeader.ACK), entry.sequence, entry.payload, entry.data,
+                entry.offset, length);
+    }
+
+    public void clear() {
+        while (head != null) {
+            poll();
+        }
+        bytes = 0;
+        deadline = 0;
+    }
+
+    // drops the oldest entry and its reference on the read, returns the next one
+    private Entry poll() {
+        Entry entry = head;
+        head = entry.next;
+        if (head == null) {
+            tail = null;
+        }
+        entry.next = null;
+        entry.payload.release();
+        if (recycler != null) {
+            recycler.free(entry);
+        }
+        return head;
+    }
+
+    public boolean isEmpty() {
+        return head == null;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getRto() {
+        return rto;
+    }
+
+    public long getSrtt() {
+        return srtt;
+    }
+
+    public long getRttvar() {
+        return rttvar;
+    }
+
+    public long getRetransmits() {
+        return retransmits;
+    }
+
+    public long getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+}
@@ -0,0 +1,120 @@
+package com.innque.localvpn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, preallocated queue with a single consumer and one or many producers.
+ * Handing an element over allocates nothing.
+ */
+public class RingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int capacity;
+    private final int mask;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+    // a single producer publishes with a volatile store instead of lazySet, see WaitStrategy.blocks
+    private final boolean fenced;
+
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim
+    private final AtomicLong head = new AtomicLong(); // next slot to read, only the consumer moves it
+
+    public RingBuffer(int capacity, boolean multiProducer, WaitStrategy waitStrategy) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.capacity = size;
+        this.mask = size - 1;
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+        this.fenced = waitStrategy.blocks();
+    }
+
+    // false when full
+    public boolean offer(E element) {
+        long index;
+        if (multiProducer) {
+            do {
+                index = tail.get();
+                if (index - head.get() >= capacity) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(index, index + 1));
+        } else {
+            index = tail.get();
+            if (index - head.get() >= capacity) {
+                return false;
+            }
+            if (fenced) {
+                tail.set(index + 1);
+            } else {
+                tail.lazySet(index + 1);
+            }
+        }
+        slots.lazySet((int) index & mask, element);
+        waitStrategy.signal();
+        return true;
+    }
+
+    // waits for space, for producers that must not drop
+    public void put(E element) {
+        while (!offer(element)) {
+            Thread.yield();
+        }
+    }
+
+    // consumer only, null when empty
+    public E poll() {
+        long index = head.get();
+        int slot = (int) index & mask;
+        E element = slots.get(slot);
+        if (element == null) {
+            if (index == tail.get()) {
+                return null;
+            }
+            // slot claimed, the producer is about to store it
+            do {
+                element = slots.get(slot);
+            } while (element == null);
+        }
+        slots.lazySet(slot, null);
+        head.lazySet(index + 1);
+        return element;
+    }
+
+    // consumer only, hands up to limit elements to the handler, returns how many
+    public int drain(Handler<E> handler, int limit) {
+        int count = 0;
+        E element;
+        while (count < limit && (element = poll()) != null) {
+            handler.onElement(element);
+            count++;
+        }
+        return count;
+    }
+
+    // consumer only, waits with the ring's strategy while empty
+    public void await() {
+        if (isEmpty()) {
+            waitStrategy.await(this);
+        }
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public interface Handler<E> {
+        void onElement(E element);
+    }
+}
@@ -0,0 +1,100 @@
+package com.innque.localvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * One packet towards the device: its own copy of the ip/tcp header plus an optional payload slice
+ * of a shared receive buffer. Both go out in a single gathering write, so tun still sees one packet.
+ */
+public class Segment {
+    private ByteBuffer header;
+    private BufferPool headerPool;
+    private PooledBuffer payload;
+    private int payloadOffset;
+    private int payloadLength;
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+    // where a released segment goes back to for reuse, null when it is left to the gc
+    private RingBuffer<Segment> recycle;
+
+    // copies headerLength bytes of the template, takes over the caller's reference on payload
+    public Segment(ByteBuffer template, int headerLength, BufferPool headerPool,
+                   PooledBuffer payload, int payloadOffset, int payloadLength) {
+        this.headerPool = headerPool;
+        this.header = headerPool.acquire();
+        int i = 0;
+        for (; i + 8 <= headerLength; i += 8) {
+            this.header.putLong(i, template.getLong(i));
+        }
+        for (; i < headerLength; i++) {
+            this.header.put(i, template.get(i));
+        }
+        this.header.limit(headerLength);
+        this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    // takes over a header already written into a buffer of headerPool, limited to its length
+    public Segment(ByteBuffer header, BufferPool headerPool, PooledBuffer payload, int payloadOffset,
+                   int payloadLength) {
+        set(header, headerPool, payload, payloadOffset, payloadLength);
+    }
+
+    // empty, filled with set and offered back to recycle once released
+    public Segment(RingBuffer<Segment> recycle) {
+        this.recycle = recycle;
+    }
+
+    // same as the constructor, for a recycled segment
+    public Segment set(ByteBuffer header, BufferPool headerPool, PooledBuffer payload, int payloadOffset,
+                       int payloadLength) {
+        this.headerPool = headerPool;
+        this.header = header;
+        this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        return this;
+    }
+
+    public ByteBuffer getHeader() {
+        return header;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int length() {
+        return header.limit() + payloadLength;
+    }
+
+    // positions header and payload, only the writing thread may call this
+    public void write(GatheringByteChannel channel) throws IOException {
+        header.position(0);
+        if (payload == null || payloadLength == 0) {
+            channel.write(header);
+            return;
+        }
+        ByteBuffer data = payload.buffer;
+        data.limit(payloadOffset + payloadLength);
+        data.position(payloadOffset);
+        buffers[0] = header;
+        buffers[1] = data;
+        channel.write(buffers);
+    }
+
+    public void release() {
+        headerPool.release(header);
+        header = null;
+        if (payload != null) {
+            payload.release();
+            payload = null;
+        }
+        if (recycle != null) {
+            // dropped when full, the owner makes a new one
+            recycle.offer(this);
+        }
+    }
+}
@@ -1,16 +1,15 @@
 package com.innque.localvpn;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayDeque;
 
 /**
  * Transmission Control Block
  */
-public class TCB {
-    public String ipAndPort;
+public class TCB extends Flow {
 
     public long lSequenceNum;
     public long rSequence;
@@ -19,37 +18,70 @@ public class TCB {
 
     public TCBStatus status;
 
-    public enum TCBStatus {SYN_SENT, SYN_RECEIVED, ESTABLISHED}
-
-    public Packet packet;
+    // FIN_WAIT: remote closed and our FIN went to the device, CLOSE_WAIT: the device closed and the
+    // socket output is shut down, LAST_ACK: both closed, waiting for the device to ack our FIN,
+    // TIME_WAIT: socket gone, only the header fields are kept to ack a repeated device FIN
+    public enum TCBStatus {SYN_SENT, SYN_RECEIVED, ESTABLISHED, FIN_WAIT, CLOSE_WAIT, LAST_ACK, TIME_WAIT, CLOSED}
+
+    // each segment writes its header into a buffer of this pool, borrowed for as long as it is queued
+    public BufferPool headerPool;
+    // segments and retransmit entries of the flow's loop, null when they are allocated
+    public Recycler recycler;
+    public short advertisedWindow; // window field as sent, scaled past the SYN-ACK when scaling is on
+    // tcp checksum of what never changes for the flow, summed once at setup
+    public long headerSum;
+
+    // device receive window, bytes sent to it past its last ack may not exceed it
+    public long window;
+    // shift for the window field of device acks, 0 unless both SYNs carry the option
+    public int windowScale;
+    // OP_READ is off until an ack opens the window again
+    public boolean windowClosed;
+    // largest segment the device takes, from the mss option of its SYN
+    public int mss = ConnectionReceive.MSS;
+    // shift of the window we advertise, -1 when the device SYN didn't offer scaling
+    public int localWindowScale = -1;
+
+    // device data covered by lAcknowledgement that no segment has acked yet
+    public int ackPendingBytes;
+    public int ackPendingSegments;
+    // delayed ack timer, 0 when stopped
+    public long ackDeadline;
+    // place in the event loop's TimerHeap, 0 when out of it, and the deadline it is ordered by
+    public int heapIndex;
+    public long heapDeadline;
+
+    // device FIN taken, acked once the data before it reached the socket
+    public boolean finReceived;
+    // times our FIN went out again without an ack
+    public int finRetransmits;
+
+    // data sent to the device, kept until it is acked
+    public RetransmitQueue retransmitQueue = new RetransmitQueue();
 
     public SocketChannel channel;
+    // device payload the socket hasn't taken yet, flushed on OP_WRITE and only then acked
+    public ArrayDeque<PooledBuffer> sendQueue;
+    public int sendQueueBytes;
     public boolean waitingForNetworkData;
     public SelectionKey selectionKey;
 
-    private static final int MAX_CACHE_SIZE = 50;
-    private static LRUCache<String, TCB> cache = new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, TCB>() {
+    // closes the flows a TCBTable evicts
+    public static final TCBTable.EvictionCallback CLOSE = new TCBTable.EvictionCallback() {
         @Override
-        public void cleanup(Map.Entry<String, TCB> eldest) {
-            eldest.getValue().closeChannel();
-        }
-    });
-
-    public static TCB getTCB(String ipAndPort) {
-        synchronized (cache) {
-            return cache.get(ipAndPort);
+        public void evicted(TCB tcb) {
+            tcb.close();
         }
-    }
+    };
 
-    public static void putTCB(String ipAndPort, TCB tcb) {
-        synchronized (cache) {
-            cache.put(ipAndPort, tcb);
-        }
+    // remote address and port in the upper 48 bits, local port in the lower 16
+    public static long key(int destinationAddress, int destinationPort, int sourcePort) {
+        return ((long) destinationAddress << 32) | ((long) (destinationPort & 0xFFFF) << 16) | (sourcePort & 0xFFFF);
     }
 
-    public TCB(String ipAndPort, long lSequenceNum, long rSequence, long lAcknowledgement, long rAcknowledgement,
+    public TCB(long key, long lSequenceNum, long rSequence, long lAcknowledgement, long rAcknowledgement,
                SocketChannel channel, Packet packet) {
-        this.ipAndPort = ipAndPort;
+        super(key);
 
         this.lSequenceNum = lSequenceNum;
         this.rSequence = rSequence;
@@ -57,31 +89,145 @@ public class TCB {
         this.rAcknowledgement = rAcknowledgement;
 
         this.channel = channel;
-        this.packet = packet;
+        if (packet != null) {
+            // keep what the replies need and give the template back, an idle flow holds no buffer
+            ByteBuffer header = packet.buffer;
+            header.putShort(IPHeader.SIZE + 18, (short) 0); // no urgent pointer
+            this.headerPool = packet.getPool();
+            this.ipHeaderStart = header.getLong(0);
+            this.ttlAndProtocol = header.getShort(8);
+            this.sourceAddress = header.getInt(12);
+            this.destinationAddress = header.getInt(16);
+            this.ports = header.getInt(IPHeader.SIZE);
+            this.advertisedWindow = header.getShort(IPHeader.SIZE + 14);
+            this.headerSum = packet.fixedSum();
+            this.ipHeaderSum = packet.ipFixedSum();
+            // the template starts as a copy of the device SYN, whose window is never scaled
+            this.window = BitUtils.getUnsignedShort(advertisedWindow);
+            packet.release();
+        }
+    }
+
+    // bytes sent to the device and not acked yet
+    public int inFlight() {
+        return (int) ((lSequenceNum - rAcknowledgement) & 0xFFFFFFFFL);
+    }
+
+    // bytes that may still be sent to the device
+    public int available() {
+        return (int) Math.max(0, window - inFlight());
+    }
+
+    // next segment towards the device, takes over the reference on payload
+    public Segment segment(byte flags, PooledBuffer payload, int payloadOffset, int payloadSize) {
+        return segment(flags, 0, payload, payloadOffset, payloadSize);
+    }
+
+    // same, with tcp options at the start of payload, they count towards the header length
+    public Segment segment(byte flags, int optionsLength, PooledBuffer payload, int payloadOffset, int payloadSize) {
+        return segment(flags, lSequenceNum, optionsLength, payload, payload == null ? null : payload.buffer,
+                payloadOffset, payloadSize);
+    }
+
+    // resend from an earlier sequence number, the checksum reads the payload through data
+    public Segment segment(byte flags, long sequence, PooledBuffer payload, ByteBuffer data,
+                           int payloadOffset, int payloadSize) {
+        return segment(flags, sequence, 0, payload, data, payloadOffset, payloadSize);
     }
 
-    public static void closeTCB(TCB tcb) {
-        tcb.closeChannel();
-        synchronized (cache) {
-            cache.remove(tcb.ipAndPort);
+    // both, options counted in the header and an earlier sequence number
+    public Segment segment(byte flags, long sequence, int optionsLength, PooledBuffer payload, ByteBuffer data,
+                           int payloadOffset, int payloadSize) {
+        if (payload == null) {
+            payloadSize = 0;
+        }
+        int headerLength = IPHeader.SIZE + TCPHeader.SIZE;
+        int totalLength = headerLength + payloadSize;
+        ByteBuffer header = headerPool.acquire();
+        ipHeader(header, totalLength);
+        header.putInt(IPHeader.SIZE, ports);
+        header.putInt(IPHeader.SIZE + 4, (int) sequence);
+        header.putInt(IPHeader.SIZE + 8, (int) lAcknowledgement);
+        header.put(IPHeader.SIZE + 12, (byte) (((TCPHeader.SIZE + optionsLength) / 4) << 4));
+        header.put(IPHeader.SIZE + 13, flags);
+        header.putShort(IPHeader.SIZE + 14, advertisedWindow);
+        header.putInt(IPHeader.SIZE + 16, 0); // checksum and urgent pointer
+        // only sequence/ack/flags/lengths and the payload are summed per segment
+        long sum = headerSum + TCPHeader.SIZE + payloadSize;
+        sum += BitUtils.getUnsignedShort(header.getShort(IPHeader.SIZE + 12)); // offset and flags
+        sum += ((sequence >>> 16) & 0xFFFF) + (sequence & 0xFFFF);
+        sum += ((lAcknowledgement >>> 16) & 0xFFFF) + (lAcknowledgement & 0xFFFF);
+        header.putShort(IPHeader.SIZE + 16, (short) BitUtils.checksum(data, payloadOffset, payloadSize, sum));
+        header.limit(headerLength);
+        // every segment carries the current ack
+        ackPendingBytes = 0;
+        ackPendingSegments = 0;
+        ackDeadline = 0;
+        if (recycler == null) {
+            return new Segment(header, headerPool, payload, payloadOffset, payloadSize);
         }
+        return recycler.segment().set(header, headerPool, payload, payloadOffset, payloadSize);
+    }
+
+    // window field of the segments from now on, the window is part of headerSum
+    public void setAdvertisedWindow(short window) {
+        headerSum += BitUtils.getUnsignedShort(window) - BitUtils.getUnsignedShort(advertisedWindow);
+        advertisedWindow = window;
     }
 
-    public static void closeAll() {
-        synchronized (cache) {
-            Iterator<Map.Entry<String, TCB>> it = cache.entrySet().iterator();
-            while (it.hasNext()) {
-                it.next().getValue().closeChannel();
-                it.remove();
+    // the loop's recycler, for the flow's segments and its retransmit queue
+    public void setRecycler(Recycler recycler) {
+        this.recycler = recycler;
+        this.retransmitQueue.recycler = recycler;
+    }
+
+    // earlier of the retransmit and delayed ack deadlines, 0 when neither runs
+    public long transmitDeadline() {
+        long retransmit = retransmitQueue.getDeadline();
+        if (ackDeadline == 0 || (retransmit != 0 && retransmit - ackDeadline < 0)) {
+            return retransmit;
+        }
+        return ackDeadline;
+    }
+
+    // frees everything, the flow is gone
+    public void close() {
+        if (status == TCBStatus.CLOSED) {
+            return;
+        }
+        status = TCBStatus.CLOSED;
+        closeChannel();
+    }
+
+    // same, the remote gets a RST instead of a FIN, for flows the device reset or we gave up on
+    public void abort() {
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.socket().setSoLinger(true, 0);
+            } catch (IOException e) {
+                // Ignore
             }
         }
+        close();
     }
 
-    private void closeChannel() {
-        try {
-            channel.close();
-        } catch (IOException e) {
-            // Ignore
+    // frees the socket and the data queued either way, the header fields stay for the last segments
+    public void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (sendQueue != null) {
+            PooledBuffer pending;
+            while ((pending = sendQueue.poll()) != null) {
+                pending.release();
+            }
+            sendQueue = null;
+            sendQueueBytes = 0;
         }
+        retransmitQueue.clear();
     }
 }
@@ -0,0 +1,48 @@
+package com.innque.localvpn;
+
+/**
+ * Flow table of the TCP connections, picks which flow to give up when it is full.
+ */
+public class TCBTable extends FlowTable<TCB> {
+
+    public TCBTable(int maxSize, EvictionCallback callback) {
+        super(maxSize, callback);
+    }
+
+    // flow to give up for a new one among the scan least recently used: the furthest along
+    // in closing, then the one idle the longest
+    public TCB victim(int scan) {
+        TCB victim = eldest();
+        TCB tcb = victim;
+        for (int i = 0; i < scan && tcb != null; i++, tcb = newer(tcb)) {
+            int rank = rank(tcb);
+            int victimRank = rank(victim);
+            if (rank < victimRank || rank == victimRank && tcb.lastActivity - victim.lastActivity < 0) {
+                victim = tcb;
+            }
+        }
+        return victim;
+    }
+
+    // 0 for flows that are done, up to 3 for open ones
+    public static int rank(TCB tcb) {
+        if (tcb.status == null) {
+            return 3;
+        }
+        switch (tcb.status) {
+            case CLOSED:
+            case TIME_WAIT:
+                return 0;
+            case LAST_ACK:
+                return 1;
+            case FIN_WAIT:
+            case CLOSE_WAIT:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    public interface EvictionCallback extends FlowTable.EvictionCallback<TCB> {
+    }
+}
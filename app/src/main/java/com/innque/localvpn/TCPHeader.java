@@ -129,33 +129,23 @@ public class TCPHeader {
 
     // get calculated checksum
     public int checksum(int payloadSize) {
-        int sum;
+        return checksum(this.buffer, IPHeader.SIZE + TCPHeader.SIZE, payloadSize);
+    }
+
+    // get calculated checksum, payload may be in another buffer
+    public int checksum(ByteBuffer payload, int payloadOffset, int payloadSize) {
         int tcpLength = TCPHeader.SIZE + payloadSize;
 
         // // PSEUDO Header
-        ByteBuffer buffer = ByteBuffer.wrap(ipHeader.getSourceAddress().getAddress());
-        sum = BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-
-        buffer = ByteBuffer.wrap(ipHeader.getDestinationAddress().getAddress());
-        sum += BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-
+        long sum = this.ipHeader.addressSum();
         sum += this.ipHeader.getProtocol() + tcpLength;
 
-        buffer = this.buffer.duplicate();
         // clear the previous checksum
         this.setChecksum(0);
 
-        // sum tcp-header
-        buffer.position(IPHeader.SIZE);
-        while (tcpLength > 1) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            tcpLength -= 2;
-        }
-        // if data size is odd
-        if (tcpLength > 0) {
-            sum += BitUtils.getUnsignedByte(buffer.get()) << 8;
-        }
-        return (int) BitUtils.checksum(sum, 16);
+        // sum tcp-header and payload, the header length is even so the payload sums on its own
+        sum += BitUtils.sum(this.buffer, IPHeader.SIZE, TCPHeader.SIZE);
+        return BitUtils.checksum(payload, payloadOffset, payloadSize, sum);
     }
 
     public void setChecksum(int checksum) {
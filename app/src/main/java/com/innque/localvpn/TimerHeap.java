@@ -0,0 +1,116 @@
+package com.innque.localvpn;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of the TCBs with a retransmit or delayed ack deadline, ordered by the earlier of
+ * the two. These run to the millisecond, too fine for the TimerWheel, and the event loop only looks
+ * at the top, so flows without a timer due cost nothing per iteration. A TCB keeps its own position,
+ * like the wheel's links, and is in the heap at most once.
+ */
+public class TimerHeap {
+    private TCB[] heap; // from index 1, 0 in a TCB means not in the heap
+    private int size;
+
+    public TimerHeap(int capacity) {
+        this.heap = new TCB[Math.max(capacity, 1) + 1];
+    }
+
+    // moves the flow to its current deadline, takes it out when it has none
+    public void update(TCB tcb) {
+        long deadline = tcb.transmitDeadline();
+        if (deadline == 0) {
+            remove(tcb);
+            return;
+        }
+        int index = tcb.heapIndex;
+        if (index == 0) {
+            if (size + 1 == heap.length) {
+                heap = Arrays.copyOf(heap, heap.length * 2);
+            }
+            index = ++size;
+            heap[index] = tcb;
+            tcb.heapIndex = index;
+            tcb.heapDeadline = deadline;
+            up(index);
+            return;
+        }
+        long old = tcb.heapDeadline;
+        tcb.heapDeadline = deadline;
+        if (deadline - old < 0) {
+            up(index);
+        } else {
+            down(index);
+        }
+    }
+
+    public void remove(TCB tcb) {
+        int index = tcb.heapIndex;
+        if (index == 0) {
+            return;
+        }
+        tcb.heapIndex = 0;
+        TCB last = heap[size];
+        heap[size--] = null;
+        if (index <= size) {
+            heap[index] = last;
+            last.heapIndex = index;
+            up(index);
+            down(last.heapIndex);
+        }
+    }
+
+    // flow with the earliest deadline, null when none is armed
+    public TCB peek() {
+        return size == 0 ? null : heap[1];
+    }
+
+    public void clear() {
+        for (int i = 1; i <= size; i++) {
+            heap[i].heapIndex = 0;
+            heap[i] = null;
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void up(int index) {
+        TCB tcb = heap[index];
+        while (index > 1) {
+            int parent = index >>> 1;
+            if (heap[parent].heapDeadline - tcb.heapDeadline <= 0) {
+                break;
+            }
+            move(heap[parent], index);
+            index = parent;
+        }
+        move(tcb, index);
+    }
+
+    private void down(int index) {
+        TCB tcb = heap[index];
+        while (true) {
+            int child = index << 1;
+            if (child > size) {
+                break;
+            }
+            if (child < size && heap[child + 1].heapDeadline - heap[child].heapDeadline < 0) {
+                child++;
+            }
+            if (tcb.heapDeadline - heap[child].heapDeadline <= 0) {
+                break;
+            }
+            move(heap[child], index);
+            index = child;
+        }
+        move(tcb, index);
+    }
+
+    private void move(TCB tcb, int index) {
+        heap[index] = tcb;
+        tcb.heapIndex = index;
+    }
+}
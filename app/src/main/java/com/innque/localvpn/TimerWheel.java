@@ -0,0 +1,137 @@
+package com.innque.localvpn;
+
+/**
+ * Hashed timer wheel for the flow timeouts of one event loop. A flow goes in the slot of its
+ * deadline tick and stays there for as many revolutions as it takes, so scheduling and cancelling
+ * are O(1) and a tick only looks at one slot. Flows are linked through themselves, like
+ * FlowTable, so timers never allocate. A flow has at most one deadline, scheduling it again moves it.
+ */
+public class TimerWheel {
+    private Flow[] slots; // head of each slot's list
+    private int mask;
+    private long tick; // nanoseconds
+    private long origin;
+    private long current; // next tick to expire
+    private int size;
+    // earliest deadline as last found, looked for again only once a flow moved
+    private long next;
+    private boolean nextValid;
+
+    public TimerWheel(int slots, long tick, long now) {
+        int capacity = 1;
+        while (capacity < slots) {
+            capacity <<= 1;
+        }
+        this.slots = new Flow[capacity];
+        this.mask = capacity - 1;
+        this.tick = tick;
+        this.origin = now;
+    }
+
+    private long tickOf(long time) {
+        return (time - origin) / tick;
+    }
+
+    // a deadline already past expires on the next call to expire
+    public void schedule(Flow flow, long deadline) {
+        if (flow.timerDeadline != 0) {
+            unlink(flow);
+        }
+        flow.timerDeadline = deadline == 0 ? 1 : deadline;
+        int slot = (int) (Math.max(tickOf(deadline), current) & mask);
+        flow.timerSlot = slot;
+        Flow head = slots[slot];
+        flow.timerPrev = null;
+        flow.timerNext = head;
+        if (head != null) {
+            head.timerPrev = flow;
+        }
+        slots[slot] = flow;
+        size++;
+        nextValid = false;
+    }
+
+    public void cancel(Flow flow) {
+        if (flow.timerDeadline != 0) {
+            unlink(flow);
+        }
+    }
+
+    // hands every flow whose deadline passed to the callback, which may schedule it again
+    public int expire(long now, Callback callback) {
+        long target = tickOf(now);
+        if (target - current > mask) {
+            // behind by more than a revolution, every slot once is enough
+            current = target - mask;
+        }
+        int expired = 0;
+        while (true) {
+            Flow flow = slots[(int) (current & mask)];
+            while (flow != null) {
+                Flow next = flow.timerNext;
+                // later revolutions stay where they are
+                if (flow.timerDeadline - now <= 0) {
+                    unlink(flow);
+                    expired++;
+                    callback.expired(flow, now);
+                }
+                flow = next;
+            }
+            if (current >= target) {
+                break;
+            }
+            current++;
+        }
+        return expired;
+    }
+
+    // earliest deadline of the flows, 0 when there are none. The slots are looked at from the
+    // current tick on, the first one holding a flow due in this revolution ends the search
+    public long nextDeadline() {
+        if (nextValid) {
+            return next;
+        }
+        long earliest = 0;
+        boolean found = false;
+        for (int i = 0; i <= mask && size > 0; i++) {
+            long t = current + i;
+            for (Flow flow = slots[(int) (t & mask)]; flow != null; flow = flow.timerNext) {
+                if (!found || flow.timerDeadline - earliest < 0) {
+                    earliest = flow.timerDeadline;
+                    found = true;
+                }
+            }
+            // later slots only hold later ticks
+            if (found && tickOf(earliest) <= t) {
+                break;
+            }
+        }
+        next = earliest;
+        nextValid = true;
+        return next;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Flow flow) {
+        if (flow.timerPrev != null) {
+            flow.timerPrev.timerNext = flow.timerNext;
+        } else {
+            slots[flow.timerSlot] = flow.timerNext;
+        }
+        if (flow.timerNext != null) {
+            flow.timerNext.timerPrev = flow.timerPrev;
+        }
+        flow.timerPrev = null;
+        flow.timerNext = null;
+        flow.timerDeadline = 0;
+        size--;
+        nextValid = false;
+    }
+
+    public interface Callback {
+        void expired(Flow flow, long now);
+    }
+}
@@ -0,0 +1,63 @@
+package com.innque.localvpn;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes segments to tun on its own thread, waiting on its ring with the ring's strategy
+ * while there is nothing to write. A failed write loses that segment only, like a drop on the
+ * wire, so the writer keeps draining and producers never block on a ring nobody empties.
+ */
+public class TunWriter implements Runnable, RingBuffer.Handler<Segment> {
+    private static final String TAG = "TunWriter";
+    private static final int BATCH = 64; // segments written between waits
+
+    private GatheringByteChannel out;
+    private RingBuffer<Segment> queue;
+    private long errors;
+
+    public TunWriter(GatheringByteChannel out, RingBuffer<Segment> queue) {
+        this.out = out;
+        this.queue = queue;
+    }
+
+    // called from any thread, the writer releases the segment once written
+    public void offer(Segment segment) {
+        queue.put(segment);
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.interrupted()) {
+            if (queue.drain(this, BATCH) == 0) {
+                queue.await();
+            }
+        }
+        Segment segment;
+        while ((segment = queue.poll()) != null) {
+            segment.release();
+        }
+    }
+
+    @Override
+    public void onElement(Segment segment) {
+        try {
+            // header and payload in one gathering write
+            segment.write(out);
+        } catch (IOException e) {
+            // logged once, the flows retransmit what was lost
+            if (errors++ == 0) {
+                Log.e(TAG, "write: ", e);
+            }
+        } finally {
+            segment.release();
+        }
+    }
+
+    // segments lost to failed writes, writer thread only
+    public long getErrors() {
+        return errors;
+    }
+}
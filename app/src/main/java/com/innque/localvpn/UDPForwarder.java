@@ -0,0 +1,243 @@
+package com.innque.localvpn;
+
+import android.net.VpnService;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * UDP of one event loop. Each device flow gets a session with a protected, non-blocking
+ * DatagramChannel connected to its remote and registered on the loop's selector. Datagrams go
+ * out straight from the tun buffer. Replies are read whole into a scratch buffer and copied into a
+ * pooled one behind room for their headers, so once a session is open neither way allocates.
+ */
+public class UDPForwarder implements FlowTable.EvictionCallback<UDPSession> {
+    private static final String TAG = "UDPForwarder";
+    public static final int MAX_SESSIONS = 256; // per loop, each holds a socket
+    // nanoseconds, RFC 4787 asks a NAT to keep a udp mapping at least 2 min and recommends 5
+    public static final long IDLE_TIMEOUT = 300000000000L; // 5 min
+    // datagrams read from one session before moving on to the next ready key
+    public static final int READ_BUDGET = 16;
+    private static final int SPARE_SEGMENTS = 256;
+    private static final int REPLY_POOL_SIZE = 256;
+    private static final int MAX_DATAGRAM = 65536; // any udp payload, so a long one is seen whole
+
+    private EventLoop loop;
+    private Selector selector;
+    private TunWriter tunWriter;
+    // replies, one datagram per buffer, the loop's own so only its thread acquires
+    private BufferPool pool;
+    private VpnService vpn;
+    private FlowTable<UDPSession> sessions;
+    // answers queries to port 53 itself, from its cache or a single upstream query
+    private DNSResolver dns;
+    // segments of written replies, back from the tun writer
+    private RingBuffer<Segment> spare;
+    // replies are read here first, a read into a smaller buffer would cut them silently
+    private ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    // longest reply one tun packet carries
+    private int maxPayload;
+    private long idleTimeout = IDLE_TIMEOUT;
+
+    // counters
+    private long datagramsSent;
+    private long datagramsReceived;
+    private long sessionsOpened;
+    private long sessionsExpired;
+    private long sessionsEvicted;
+    private long dropped;
+
+    public UDPForwarder(EventLoop loop, TunWriter tunWriter, BufferPool pool, int maxSessions, VpnService vpn) {
+        this.loop = loop;
+        this.selector = loop.getSelector();
+        this.tunWriter = tunWriter;
+        this.pool = new BufferPool(REPLY_POOL_SIZE, pool.getBufferSize(), pool.isDirect());
+        this.maxPayload = pool.getBufferSize() - UDPSession.HEADER_SIZE;
+        this.vpn = vpn;
+        this.sessions = new FlowTable<>(maxSessions, this);
+        // only the tun writer releases segments
+        this.spare = new RingBuffer<>(SPARE_SEGMENTS, false, new WaitStrategy.Yielding());
+        this.dns = new DNSResolver(this, selector, DNSResolver.CACHE_SIZE, vpn);
+    }
+
+    // datagram from the device, the caller keeps the buffer
+    public void send(PacketView view) {
+        if (view.getDestinationPort() == dns.getPort() && dns.query(view)) {
+            return;
+        }
+        long key = view.flowKey();
+        long now = System.nanoTime();
+        UDPSession session = sessions.get(key);
+        try {
+            if (session == null) {
+                session = open(key, view, now);
+            }
+            session.lastActivity = now;
+            // a full socket buffer drops it, like a congested link would, an empty datagram is sent writing 0
+            boolean empty = view.getUdpPayloadSize() == 0;
+            if (session.channel.write(view.udpPayload()) > 0 || empty) {
+                datagramsSent++;
+            } else {
+                dropped++;
+            }
+        } catch (IOException e) {
+            // no route or the remote refused, the device retries or gives up
+            dropped++;
+            if (session != null) {
+                close(session);
+            }
+        }
+    }
+
+    private UDPSession open(long key, PacketView view, long now) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        UDPSession session = new UDPSession(key, view, channel);
+        try {
+            channel.configureBlocking(false);
+            if (vpn != null) {
+                vpn.protect(channel.socket());
+            }
+            channel.connect(socketAddress(view.getDestinationAddress(), view.getDestinationPort()));
+            session.selectionKey = channel.register(selector, SelectionKey.OP_READ, session);
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+        // a full table gives up its least recently used session
+        sessions.put(key, session);
+        loop.schedule(session, now + idleTimeout);
+        sessionsOpened++;
+        return session;
+    }
+
+    public static InetSocketAddress socketAddress(int address, int port) throws UnknownHostException {
+        InetAddress inetAddress = InetAddress.getByAddress(new byte[]{
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        return new InetSocketAddress(inetAddress, port);
+    }
+
+    // replies from the remote, each one straight to the tun writer
+    public void read(SelectionKey key) {
+        UDPSession session = (UDPSession) key.attachment();
+        for (int i = 0; i < READ_BUDGET; i++) {
+            datagram.clear();
+            int size;
+            try {
+                size = session.channel.read(datagram);
+            } catch (IOException e) {
+                // e.g. port unreachable from an earlier datagram
+                close(session);
+                return;
+            }
+            if (size <= 0) {
+                return;
+            }
+            session.lastActivity = System.nanoTime();
+            if (size > maxPayload) {
+                // too long for one tun packet, cut short it would reach the device as a valid datagram
+                dropped++;
+                continue;
+            }
+            datagram.flip();
+            ByteBuffer buffer = pool.acquire();
+            buffer.position(UDPSession.HEADER_SIZE);
+            buffer.put(datagram);
+            reply(session, buffer, size);
+            datagramsReceived++;
+        }
+    }
+
+    // payload of size bytes at UDPSession.HEADER_SIZE of a pooled buffer, to the device of session
+    public void reply(UDPSession session, ByteBuffer buffer, int size) {
+        session.reply(buffer, size);
+        Segment segment = spare.poll();
+        if (segment == null) {
+            segment = new Segment(spare);
+        }
+        tunWriter.offer(segment.set(buffer, pool, null, 0, 0));
+    }
+
+    // idle timeout from the wheel, activity is only checked when it runs out
+    public void expired(UDPSession session, long now) {
+        if (now - session.lastActivity >= idleTimeout) {
+            sessionsExpired++;
+            close(session);
+        } else {
+            loop.schedule(session, session.lastActivity + idleTimeout);
+        }
+    }
+
+    public void close(UDPSession session) {
+        loop.cancel(session);
+        sessions.remove(session.key);
+        session.close();
+    }
+
+    // session pushed out of a full table
+    @Override
+    public void evicted(UDPSession session) {
+        sessionsEvicted++;
+        loop.cancel(session);
+        session.close();
+    }
+
+    public void closeAll() {
+        sessions.clear(UDPSession.CLOSE);
+        dns.close();
+    }
+
+    public DNSResolver getDns() {
+        return dns;
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public UDPSession getSession(long key) {
+        return sessions.get(key);
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    public long getDatagramsReceived() {
+        return datagramsReceived;
+    }
+
+    public long getSessionsOpened() {
+        return sessionsOpened;
+    }
+
+    public long getSessionsExpired() {
+        return sessionsExpired;
+    }
+
+    public long getSessionsEvicted() {
+        return sessionsEvicted;
+    }
+
+    // device datagrams that could not be sent and replies too long for the tun
+    public long getDropped() {
+        return dropped;
+    }
+}
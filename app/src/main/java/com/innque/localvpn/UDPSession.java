@@ -0,0 +1,80 @@
+package com.innque.localvpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * One UDP flow of the device: a connected DatagramChannel to the remote and the headers of
+ * the datagrams coming back, written in place in front of each reply.
+ */
+public class UDPSession extends Flow {
+    // ip and udp header in front of a reply
+    public static final int HEADER_SIZE = IPHeader.SIZE + PacketView.UDP_HEADER_SIZE;
+
+    public DatagramChannel channel;
+    public SelectionKey selectionKey;
+    // udp checksum of the pseudo header addresses and protocol and the ports, summed once at setup
+    public long headerSum;
+
+    public UDPSession(long key, PacketView view, DatagramChannel channel) {
+        super(key);
+        this.channel = channel;
+        address(view);
+    }
+
+    // replies go from the remote to the device, so addresses and ports are those of view swapped
+    public void address(PacketView view) {
+        // no ip options, identification 0 and don't fragment, replies fit the tun mtu
+        this.ipHeaderStart = (long) (0x4500 | view.getType()) << 48 | 0x4000;
+        this.ttlAndProtocol = (short) (64 << 8 | PacketView.UDP);
+        this.sourceAddress = view.getDestinationAddress();
+        this.destinationAddress = view.getSourceAddress();
+        this.ports = view.getDestinationPort() << 16 | view.getSourcePort();
+        long addressSum = halves(sourceAddress) + halves(destinationAddress);
+        this.ipHeaderSum = (ipHeaderStart >>> 48) + (ipHeaderStart & 0xFFFF) + (ttlAndProtocol & 0xFFFF) + addressSum;
+        this.headerSum = addressSum + PacketView.UDP + halves(ports);
+    }
+
+    private static long halves(int value) {
+        return (value >>> 16) + (value & 0xFFFF);
+    }
+
+    // writes the ip and udp header in front of a reply read to HEADER_SIZE and limits packet to it
+    public void reply(ByteBuffer packet, int payloadSize) {
+        int udpLength = PacketView.UDP_HEADER_SIZE + payloadSize;
+        int totalLength = IPHeader.SIZE + udpLength;
+        ipHeader(packet, totalLength);
+        packet.putInt(IPHeader.SIZE, ports);
+        packet.putShort(IPHeader.SIZE + 4, (short) udpLength);
+        // the length is in the pseudo header and in the udp header
+        long sum = headerSum + udpLength + udpLength;
+        int checksum = BitUtils.checksum(packet, HEADER_SIZE, payloadSize, sum);
+        // 0 means no checksum, its complement stands for a sum of 0
+        packet.putShort(IPHeader.SIZE + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+        packet.limit(totalLength);
+        packet.position(0);
+    }
+
+    public void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+        channel = null;
+        selectionKey = null;
+    }
+
+    // closes every session left in a table
+    public static final FlowTable.EvictionCallback<UDPSession> CLOSE = new FlowTable.EvictionCallback<UDPSession>() {
+        @Override
+        public void evicted(UDPSession session) {
+            session.close();
+        }
+    };
+}
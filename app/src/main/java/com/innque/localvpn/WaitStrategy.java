@@ -0,0 +1,131 @@
+package com.innque.localvpn;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How the consumer of a RingBuffer waits while it is empty. One instance per ring.
+ */
+public abstract class WaitStrategy {
+    public enum Type {SPIN_THEN_PARK, BLOCKING, YIELDING}
+
+    public static WaitStrategy create(Type type) {
+        switch (type) {
+            case BLOCKING:
+                return new Blocking();
+            case YIELDING:
+                return new Yielding();
+            default:
+                return new SpinThenPark();
+        }
+    }
+
+    // consumer side, returns when the ring may have something, or on interrupt
+    public abstract void await(RingBuffer<?> ring);
+
+    // producer side, after publishing an element
+    public abstract void signal();
+
+    // true when await may block. signal then reads a flag the consumer set before its last look
+    // at the ring, so the ring publishes with a full fence or the consumer could sleep on an element
+    public boolean blocks() {
+        return true;
+    }
+
+    /**
+     * Spins, then yields, then parks until a producer unparks it. Near zero cpu when idle.
+     */
+    public static class SpinThenPark extends WaitStrategy {
+        private static final int SPINS = 100;
+        private static final int YIELDS = 10;
+
+        private volatile Thread consumer;
+        private volatile boolean parked;
+
+        @Override
+        public void await(RingBuffer<?> ring) {
+            for (int i = 0; i < SPINS; i++) {
+                if (!ring.isEmpty()) {
+                    return;
+                }
+            }
+            for (int i = 0; i < YIELDS; i++) {
+                Thread.yield();
+                if (!ring.isEmpty()) {
+                    return;
+                }
+            }
+            consumer = Thread.currentThread();
+            parked = true;
+            // re-check after publishing parked, a signal in between won't be missed
+            if (ring.isEmpty()) {
+                LockSupport.park(this);
+            }
+            parked = false;
+        }
+
+        @Override
+        public void signal() {
+            if (parked) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    /**
+     * Waits on a condition, producers only take the lock when the consumer is waiting.
+     */
+    public static class Blocking extends WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private volatile boolean waiting;
+
+        @Override
+        public void await(RingBuffer<?> ring) {
+            lock.lock();
+            try {
+                waiting = true;
+                while (ring.isEmpty()) {
+                    notEmpty.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting = false;
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (waiting) {
+                lock.lock();
+                try {
+                    notEmpty.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Yields the cpu between polls. Lowest wake up latency after spinning, but never sleeps.
+     */
+    public static class Yielding extends WaitStrategy {
+        @Override
+        public void await(RingBuffer<?> ring) {
+            Thread.yield();
+        }
+
+        @Override
+        public void signal() {
+        }
+
+        @Override
+        public boolean blocks() {
+            return false;
+        }
+    }
+}
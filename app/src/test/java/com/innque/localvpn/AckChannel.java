@@ -0,0 +1,23 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Device side of the tun in tests, keeps the last sequence number, ack, flags and window sent to it
+ */
+public class AckChannel extends DiscardChannel {
+    public volatile long seq;
+    public volatile long ack;
+    public volatile int flags;
+    public volatile int window;
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        ByteBuffer header = srcs[offset];
+        flags = header.get(header.position() + IPHeader.SIZE + 13) & 0xFF;
+        seq = BitUtils.getUnsignedInt(header.getInt(header.position() + IPHeader.SIZE + 4));
+        ack = BitUtils.getUnsignedInt(header.getInt(header.position() + IPHeader.SIZE + 8));
+        window = BitUtils.getUnsignedShort(header.getShort(header.position() + IPHeader.SIZE + 14));
+        return super.write(srcs, offset, length);
+    }
+}
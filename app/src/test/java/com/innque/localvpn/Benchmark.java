@@ -0,0 +1,16 @@
+package com.innque.localvpn;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+
+/**
+ * Base of the benchmarks. They take seconds each and check throughput, so a plain test run skips
+ * them, run them with -Dbenchmarks=true (gradle: -Pbenchmarks=true).
+ */
+public abstract class Benchmark {
+
+    @BeforeClass
+    public static void enabled() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+    }
+}
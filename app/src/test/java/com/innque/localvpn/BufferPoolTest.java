@@ -0,0 +1,129 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testAccounting() {
+        BufferPool pool = new BufferPool(2, 64, true);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertEquals(64, first.capacity());
+        assertTrue(first.isDirect());
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(2, pool.getOutstanding());
+        assertEquals(0, pool.getAvailable());
+
+        first.putInt(7).limit(10);
+        pool.release(first);
+        assertEquals(1, pool.getOutstanding());
+        assertEquals(1, pool.getAvailable());
+        // reused, cleared
+        ByteBuffer again = pool.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.position());
+        assertEquals(64, again.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(2, pool.getOutstanding());
+
+        pool.release(again);
+        pool.release(second);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void testFullPoolDrops() {
+        BufferPool pool = new BufferPool(2, 64, false);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            buffers.add(pool.acquire());
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        // the third is left to the GC
+        assertEquals(2, pool.getAvailable());
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void testForeignBufferIgnored() {
+        BufferPool pool = new BufferPool(2, 64, true);
+        ByteBuffer buffer = pool.acquire();
+        // wrong size, heap instead of direct
+        pool.release(ByteBuffer.allocateDirect(128));
+        pool.release(ByteBuffer.allocate(64));
+        assertEquals(0, pool.getAvailable());
+        assertEquals(1, pool.getOutstanding());
+        assertNotSame(buffer, pool.acquire());
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    public void testReleaseFromOtherThreads() throws InterruptedException {
+        final BufferPool pool = new BufferPool(1024, 64, false);
+        final int perThread = 256;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final List<ByteBuffer> buffers = new ArrayList<>();
+            for (int i = 0; i < perThread; i++) {
+                buffers.add(pool.acquire());
+            }
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (ByteBuffer buffer : buffers) {
+                        pool.release(buffer);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(threads.length * perThread, pool.getAvailable());
+        for (int i = 0; i < threads.length * perThread; i++) {
+            assertNotNull(pool.acquire());
+        }
+        assertEquals(threads.length * perThread, pool.getHits());
+    }
+
+    @Test
+    public void testPooledBufferLastRelease() {
+        BufferPool pool = new BufferPool(2, 64, true);
+        PooledBuffer pooled = new PooledBuffer(pool.acquire(), pool);
+        assertSame(pooled, pooled.retain());
+        pooled.retain();
+        pooled.release();
+        pooled.release();
+        // one holder left
+        assertEquals(1, pool.getOutstanding());
+        assertEquals(0, pool.getAvailable());
+        pooled.release();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(1, pool.getAvailable());
+        assertSame(pooled.buffer, pool.acquire());
+    }
+
+    @Test
+    public void testUnpooledBuffer() {
+        PooledBuffer pooled = new PooledBuffer(ByteBuffer.allocate(64), null);
+        assertNull(pooled.getPool());
+        pooled.retain().release();
+        pooled.release();
+    }
+}
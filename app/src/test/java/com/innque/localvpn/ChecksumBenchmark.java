@@ -0,0 +1,67 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rough timing of BitUtils.checksum against the old short by short loop on full MTU segments
+ */
+public class ChecksumBenchmark extends Benchmark {
+    private static final int SIZE = 1480; // tcp header + payload of a 1500 byte packet
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    private int sink;
+
+    private ByteBuffer randomBuffer(boolean direct) {
+        Random random = new Random(7);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(1500) : ByteBuffer.allocate(1500);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) random.nextInt());
+        }
+        return buffer;
+    }
+
+    private long timeReference(ByteBuffer buffer, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += ChecksumTest.referenceChecksum(buffer, IPHeader.SIZE, SIZE, i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long timeKernel(ByteBuffer buffer, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += BitUtils.checksum(buffer, IPHeader.SIZE, SIZE, i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void run(boolean direct) {
+        ByteBuffer buffer = randomBuffer(direct);
+        assertEquals(ChecksumTest.referenceChecksum(buffer, IPHeader.SIZE, SIZE, 0),
+                BitUtils.checksum(buffer, IPHeader.SIZE, SIZE, 0));
+        timeReference(buffer, WARMUP);
+        timeKernel(buffer, WARMUP);
+        long reference = timeReference(buffer, ITERATIONS);
+        long kernel = timeKernel(buffer, ITERATIONS);
+        System.out.println("ChecksumBenchmark " + (direct ? "direct" : "heap")
+                + " short loop: " + reference / ITERATIONS + " ns/op"
+                + ", word kernel: " + kernel / ITERATIONS + " ns/op");
+    }
+
+    @Test
+    public void benchmarkHeap() {
+        run(false);
+    }
+
+    @Test
+    public void benchmarkDirect() {
+        run(true);
+    }
+}
@@ -0,0 +1,171 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChecksumTest {
+    private static final int ROUNDS = 2000;
+
+    private Random random = new Random(42);
+
+    // random ipv4/tcp packet without options, checksums left at zero
+    private Packet randomPacket(int payloadSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        buffer.put(BitUtils.toByteArray("45000028"));
+        buffer.putShort((short) random.nextInt()); // identification
+        buffer.put(BitUtils.toByteArray("40004006")); // flags, ttl, protocol
+        buffer.putShort((short) 0);
+        buffer.putInt(random.nextInt()); // source
+        buffer.putInt(random.nextInt()); // destination
+        buffer.putShort((short) random.nextInt()); // source port
+        buffer.putShort((short) random.nextInt()); // destination port
+        buffer.putInt(random.nextInt());
+        buffer.putInt(random.nextInt());
+        buffer.put((byte) 0x50);
+        buffer.put((byte) random.nextInt(0x40));
+        buffer.putShort((short) random.nextInt()); // window
+        buffer.putInt(0); // checksum, urgent pointer
+        for (int i = 0; i < payloadSize; i++) {
+            buffer.put((byte) random.nextInt());
+        }
+        buffer.flip();
+        return new Packet(buffer);
+    }
+
+    // the short by short loop the headers used before BitUtils.sum
+    static int referenceChecksum(ByteBuffer data, int offset, int length, long initial) {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(offset);
+        long sum = initial;
+        while (length > 1) {
+            sum += BitUtils.getUnsignedShort(buffer.getShort());
+            length -= 2;
+        }
+        if (length > 0) {
+            sum += BitUtils.getUnsignedByte(buffer.get()) << 8;
+        }
+        return (int) BitUtils.checksum(sum, 16);
+    }
+
+    private void randomUpdate(Packet packet, int payloadSize) {
+        packet.update((byte) random.nextInt(0x40), BitUtils.getUnsignedInt(random.nextInt()),
+                BitUtils.getUnsignedInt(random.nextInt()), payloadSize);
+    }
+
+    // checksums computed from scratch on a copy, checksum() clears the stored value
+    private void assertChecksums(Packet packet, int payloadSize) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.buffer.capacity());
+        copy.put(packet.buffer.array());
+        copy.clear();
+        Packet expected = new Packet(copy);
+        assertEquals(expected.tcpHeader.checksum(payloadSize), packet.tcpHeader.getChecksum());
+        assertEquals(expected.ipHeader.checksum(), packet.ipHeader.getChecksum());
+    }
+
+    @Test
+    public void testSumMatchesReference() {
+        ByteBuffer heap = ByteBuffer.allocate(1600);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1600);
+        for (int i = 0; i < ROUNDS; i++) {
+            for (int j = 0; j < heap.capacity(); j++) {
+                byte value = (byte) random.nextInt();
+                heap.put(j, value);
+                direct.put(j, value);
+            }
+            // arbitrary, unaligned slices with odd lengths
+            int offset = random.nextInt(100);
+            int length = random.nextInt(1500);
+            long initial = random.nextInt(0x7FFFF);
+            int expected = referenceChecksum(heap, offset, length, initial);
+            assertEquals(expected, BitUtils.checksum(heap, offset, length, initial));
+            assertEquals(expected, BitUtils.checksum(direct, offset, length, initial));
+        }
+    }
+
+    @Test
+    public void testIncrementalMatchesFull() {
+        for (int i = 0; i < ROUNDS; i++) {
+            Packet packet = randomPacket(0);
+            randomUpdate(packet, 0);
+            assertChecksums(packet, 0);
+            // header only updates take the incremental path
+            for (int j = 0; j < 8; j++) {
+                randomUpdate(packet, 0);
+                assertChecksums(packet, 0);
+            }
+        }
+    }
+
+    @Test
+    public void testPayloadFallsBackToFull() {
+        for (int i = 0; i < ROUNDS; i++) {
+            int payloadSize = random.nextInt(1461);
+            Packet packet = randomPacket(payloadSize);
+            randomUpdate(packet, payloadSize);
+            assertChecksums(packet, payloadSize);
+            // payload dropped
+            randomUpdate(packet, 0);
+            assertChecksums(packet, 0);
+            randomUpdate(packet, 0);
+            assertChecksums(packet, 0);
+            // new payload, odd sizes included
+            payloadSize = random.nextInt(1461);
+            packet.buffer.clear();
+            for (int j = 0; j < payloadSize; j++) {
+                packet.buffer.put(IPHeader.SIZE + TCPHeader.SIZE + j, (byte) random.nextInt());
+            }
+            randomUpdate(packet, payloadSize);
+            assertChecksums(packet, payloadSize);
+        }
+    }
+
+    @Test
+    public void testFixedSumMatchesFull() {
+        for (int i = 0; i < ROUNDS; i++) {
+            int payloadSize = random.nextInt(1461);
+            Packet packet = randomPacket(payloadSize);
+            packet.swapSourceAndDestination();
+            long fixedSum = packet.fixedSum();
+            long ipFixedSum = packet.ipFixedSum();
+            for (int j = 0; j < 4; j++) {
+                int size = j == 0 ? payloadSize : random.nextInt(payloadSize + 1);
+                packet.update((byte) random.nextInt(0x40), BitUtils.getUnsignedInt(random.nextInt()),
+                        BitUtils.getUnsignedInt(random.nextInt()), packet.buffer, IPHeader.SIZE + TCPHeader.SIZE, size,
+                        fixedSum, ipFixedSum);
+                assertChecksums(packet, size);
+            }
+        }
+    }
+
+    @Test
+    public void testSwapKeepsChecksum() {
+        for (int i = 0; i < ROUNDS; i++) {
+            Packet packet = randomPacket(0);
+            randomUpdate(packet, 0);
+            packet.swapSourceAndDestination();
+            assertChecksums(packet, 0);
+            randomUpdate(packet, 0);
+            assertChecksums(packet, 0);
+        }
+    }
+
+    @Test
+    public void testSynOptionsDropped() {
+        String IPHeaderHex = "4500003c4867400040067430c0a8fe67c0a8fe6b";
+        String TCPHeaderHex = "e6b222b860a0e96f00000000a002ffffd5020000020405b40402080a0055a1080000000001030307";
+        byte[] bytes = BitUtils.toByteArray(IPHeaderHex + TCPHeaderHex);
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        buffer.put(bytes);
+        buffer.flip();
+        Packet packet = new Packet(buffer);
+        packet.swapSourceAndDestination();
+        packet.update((byte) (TCPHeader.SYN + TCPHeader.ACK), 100, 1621158256, 0);
+        assertChecksums(packet, 0);
+        packet.update((byte) TCPHeader.ACK, 101, 1621158262, 0);
+        assertChecksums(packet, 0);
+    }
+}
@@ -0,0 +1,384 @@
+package com.innque.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionReceiveTest {
+    private ServerSocketChannel server;
+    private Selector selector;
+    private BufferPool pool;
+    private BufferPool headerPool;
+    private RingBuffer<Segment> queue;
+    private TunWriter tunWriter;
+    private List<SocketChannel> remotes = new ArrayList<>();
+    private List<TCB> tcbs = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        selector = Selector.open();
+        // one segment per read
+        pool = new BufferPool(64, ConnectionReceive.MSS, true);
+        headerPool = new BufferPool(64, 60, true);
+        queue = new RingBuffer<>(1024, true, new WaitStrategy.Yielding());
+        // not started, segments stay in the queue to be counted
+        tunWriter = new TunWriter(new DiscardChannel(), queue);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Segment segment;
+        while ((segment = queue.poll()) != null) {
+            segment.release();
+        }
+        for (TCB tcb : tcbs) {
+            tcb.close();
+        }
+        for (SocketChannel remote : remotes) {
+            remote.close();
+        }
+        selector.close();
+        server.close();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, headerPool.getOutstanding());
+    }
+
+    // established flow reading from a loopback connection, returns the remote end
+    private SocketChannel open(int port) throws IOException {
+        return open(port, 0xFFFF);
+    }
+
+    private SocketChannel open(int port, int window) throws IOException {
+        SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel remote = server.accept();
+        remotes.add(remote);
+        channel.configureBlocking(false);
+        ByteBuffer header = TestLoop.header(headerPool);
+        header.putShort(IPHeader.SIZE, (short) port);
+        header.putShort(IPHeader.SIZE + 14, (short) window);
+        TCB tcb = TestLoop.tcb(headerPool, header, channel);
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        tcb.selectionKey = channel.register(selector, SelectionKey.OP_READ, tcb);
+        tcbs.add(tcb);
+        return remote;
+    }
+
+    private static void write(SocketChannel remote, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        while (data.hasRemaining()) {
+            remote.write(data);
+        }
+    }
+
+    // select until count keys are ready at once
+    private void awaitReady(int count) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (selector.selectedKeys().size() < count) {
+            selector.select(10);
+            assertTrue(System.currentTimeMillis() < deadline);
+        }
+    }
+
+    @Test
+    public void testEveryReadyKeyHandled() throws IOException {
+        int flows = 20;
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, pool);
+        for (int i = 0; i < flows; i++) {
+            write(open(10000 + i), 100);
+        }
+        awaitReady(flows);
+        assertEquals(flows, receive.processSelectedKeys());
+        // one segment for every flow after a single round
+        assertEquals(flows, queue.size());
+        assertTrue(selector.selectedKeys().isEmpty());
+        assertEquals(1, receive.getSelects());
+        assertEquals(flows, receive.getKeysHandled());
+        assertEquals(flows, receive.getMaxKeysPerSelect());
+    }
+
+    @Test
+    public void testReadBudget() throws IOException, InterruptedException {
+        int budget = 2;
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, pool, budget);
+        int maxPayload = ConnectionReceive.MSS;
+        SocketChannel bulk = open(10000);
+        SocketChannel interactive = open(10001);
+        write(bulk, maxPayload * 10);
+        write(interactive, 10);
+        Thread.sleep(100);
+        awaitReady(2);
+        assertEquals(2, receive.processSelectedKeys());
+        // the bulk flow stops at its budget, the interactive one still gets its turn
+        assertEquals(budget + 1, queue.size());
+        int total = 0;
+        Segment segment;
+        while ((segment = queue.poll()) != null) {
+            total += segment.getPayloadLength();
+            segment.release();
+        }
+        assertEquals(budget * maxPayload + 10, total);
+        // the rest is picked up on the next rounds
+        awaitReady(1);
+        assertEquals(1, receive.processSelectedKeys());
+        assertEquals(budget, queue.size());
+    }
+
+    @Test
+    public void testDeviceWindow() throws IOException, InterruptedException {
+        int maxPayload = ConnectionReceive.MSS;
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, pool, 16);
+        ConnectionSend send = new EventLoop(0, 16, 50, tunWriter, pool, headerPool, null).getSend();
+        SocketChannel remote = open(10000, 2 * maxPayload + 100);
+        TCB tcb = tcbs.get(0);
+        write(remote, maxPayload * 10);
+        Thread.sleep(100);
+        awaitReady(1);
+        receive.processSelectedKeys();
+        // stops at the window, not at the budget
+        assertEquals(3, queue.size());
+        assertEquals(2 * maxPayload + 100, tcb.inFlight());
+        assertEquals(0, tcb.available());
+        assertTrue(tcb.windowClosed);
+        assertEquals(0, tcb.selectionKey.interestOps() & SelectionKey.OP_READ);
+
+        // device acks the first segment and keeps its window
+        ByteBuffer ack = ByteBuffer.allocate(IPHeader.SIZE + TCPHeader.SIZE);
+        ack.put(BitUtils.toByteArray(TestLoop.HEADER_HEX));
+        ack.putShort(2, (short) ack.capacity());
+        ack.putShort(IPHeader.SIZE, (short) 10000);
+        ack.putInt(IPHeader.SIZE + 8, maxPayload);
+        ack.putShort(IPHeader.SIZE + 14, (short) (2 * maxPayload + 100));
+        ack.flip();
+        // an ack for data never sent doesn't move anything
+        ack.putInt(IPHeader.SIZE + 8, 10 * maxPayload);
+        assertFalse(send.processACK(tcb, new PacketView().wrap(ack)));
+        assertTrue(tcb.windowClosed);
+        ack.putInt(IPHeader.SIZE + 8, maxPayload);
+        assertFalse(send.processACK(tcb, new PacketView().wrap(ack)));
+        assertFalse(tcb.windowClosed);
+        assertEquals(maxPayload, tcb.available());
+        assertTrue((tcb.selectionKey.interestOps() & SelectionKey.OP_READ) != 0);
+        awaitReady(1);
+        receive.processSelectedKeys();
+        assertEquals(4, queue.size());
+        assertTrue(tcb.windowClosed);
+    }
+
+    @Test
+    public void testSegmentation() throws IOException, InterruptedException {
+        int size = 50000;
+        int mss = ConnectionReceive.MSS;
+        BufferPool readPool = new BufferPool(4, 64 * 1024, true);
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, readPool);
+        SocketChannel remote = open(10000);
+        TCB tcb = tcbs.get(0);
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            data.put(i, (byte) i);
+        }
+        while (data.hasRemaining()) {
+            remote.write(data);
+        }
+        Thread.sleep(100);
+        awaitReady(1);
+        receive.processSelectedKeys();
+        // one read, cut at the mss
+        assertEquals(1, receive.getReads());
+        int count = (size + mss - 1) / mss;
+        assertEquals(count, receive.getSegments());
+        assertEquals(count, queue.size());
+        assertEquals(size, tcb.lSequenceNum);
+        long sequence = 0;
+        for (int i = 0; i < count; i++) {
+            Segment segment = queue.poll();
+            ByteBuffer header = segment.getHeader();
+            int length = segment.getPayloadLength();
+            assertEquals(Math.min(mss, size - (int) sequence), length);
+            assertEquals(sequence, BitUtils.getUnsignedInt(header.getInt(IPHeader.SIZE + 4)));
+            assertEquals(IPHeader.SIZE + TCPHeader.SIZE + length, BitUtils.getUnsignedShort(header.getShort(2)));
+            // push on the last one only
+            int flags = header.get(IPHeader.SIZE + 13);
+            assertEquals(i == count - 1 ? TCPHeader.PSH + TCPHeader.ACK : TCPHeader.ACK, flags);
+            // packet as the device gets it checks out
+            ByteBuffer packet = ByteBuffer.allocate(segment.length());
+            packet.put(header.duplicate());
+            ByteBuffer payload = readPayload(segment);
+            for (int j = 0; j < length; j++) {
+                assertEquals((byte) (sequence + j), payload.get(j));
+            }
+            packet.put(payload);
+            assertEquals(0, BitUtils.checksum(packet, 0, IPHeader.SIZE, 0));
+            assertEquals(0, tcpChecksum(packet));
+            segment.release();
+            sequence += length;
+        }
+        // kept for retransmission until the device acks it
+        assertEquals(1, readPool.getOutstanding());
+        assertEquals(size, tcb.retransmitQueue.getBytes());
+        tcb.retransmitQueue.acknowledge(size, false, System.nanoTime());
+        assertTrue(tcb.retransmitQueue.isEmpty());
+        assertEquals(0, readPool.getOutstanding());
+    }
+
+    @Test
+    public void testShortReadCopied() throws IOException {
+        int size = 300;
+        BufferPool readPool = new BufferPool(4, 64 * 1024, true);
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, readPool);
+        BufferPool shortPool = receive.getShortPool();
+        SocketChannel remote = open(10000);
+        TCB tcb = tcbs.get(0);
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            data.put(i, (byte) i);
+        }
+        while (data.hasRemaining()) {
+            remote.write(data);
+        }
+        awaitReady(1);
+        receive.processSelectedKeys();
+        assertEquals(1, queue.size());
+        Segment segment = queue.poll();
+        ByteBuffer payload = readPayload(segment);
+        assertEquals(size, segment.getPayloadLength());
+        for (int i = 0; i < size; i++) {
+            assertEquals((byte) i, payload.get(i));
+        }
+        segment.release();
+        // the large buffer went back right away, an mss sized copy waits for the ack
+        assertEquals(0, readPool.getOutstanding());
+        assertEquals(1, shortPool.getOutstanding());
+        tcb.retransmitQueue.acknowledge(size, false, System.nanoTime());
+        assertEquals(0, shortPool.getOutstanding());
+        // a read buffer no larger than the mss is kept as it is
+        assertNull(new ConnectionReceive(selector, tunWriter, pool).getShortPool());
+    }
+
+    @Test
+    public void testSynAckOptions() throws IOException {
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, pool);
+        open(10000);
+        TCB tcb = tcbs.get(0);
+        tcb.lSequenceNum = 1000;
+        tcb.lAcknowledgement = 2000;
+        for (int scale = -1; scale <= 2; scale++) {
+            tcb.localWindowScale = scale;
+            Segment segment = receive.synAck(tcb);
+            int optionsLength = scale < 0 ? 4 : 8;
+            ByteBuffer header = segment.getHeader();
+            assertEquals(optionsLength, segment.getPayloadLength());
+            assertEquals(IPHeader.SIZE + TCPHeader.SIZE + optionsLength, BitUtils.getUnsignedShort(header.getShort(2)));
+            assertEquals(TCPHeader.SIZE + optionsLength, (header.get(IPHeader.SIZE + 12) >> 4) * 4);
+            ByteBuffer packet = ByteBuffer.allocate(segment.length());
+            packet.put(header.duplicate());
+            packet.put(readPayload(segment));
+            packet.flip();
+            assertEquals(0, BitUtils.checksum(packet, 0, IPHeader.SIZE, 0));
+            assertEquals(0, tcpChecksum(packet));
+            // the device parses it back
+            PacketView view = new PacketView().wrap(packet);
+            assertTrue(view.isSYN() && view.isACK());
+            assertEquals(0, view.getPayloadSize());
+            assertEquals(ConnectionReceive.MSS, view.getMss());
+            assertEquals(scale, view.getWindowScale());
+            assertEquals(1000, view.getSequenceNumber());
+            assertEquals(2000, view.getAcknowledgmentNumber());
+            segment.release();
+        }
+        // later segments go back to the plain header, with the scaled window once it is set
+        tcb.setAdvertisedWindow((short) 1234);
+        Segment segment = tcb.segment((byte) TCPHeader.ACK, null, 0, 0);
+        ByteBuffer header = segment.getHeader();
+        assertEquals(TCPHeader.SIZE, (header.get(IPHeader.SIZE + 12) >> 4) * 4);
+        assertEquals(IPHeader.SIZE + TCPHeader.SIZE, BitUtils.getUnsignedShort(header.getShort(2)));
+        assertEquals(1234, header.getShort(IPHeader.SIZE + 14));
+        ByteBuffer packet = ByteBuffer.allocate(segment.length());
+        packet.put(header.duplicate());
+        packet.flip();
+        assertEquals(0, tcpChecksum(packet));
+        segment.release();
+    }
+
+    @Test
+    public void testWindowScale() {
+        assertEquals(0, ConnectionSend.windowScale(0xFFFF));
+        assertEquals(1, ConnectionSend.windowScale(64 * 1024));
+        assertEquals(3, ConnectionSend.windowScale(512 * 1024 - 8));
+        assertEquals(4, ConnectionSend.windowScale(512 * 1024));
+        assertEquals(14, ConnectionSend.windowScale(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testDeviceMss() throws IOException, InterruptedException {
+        BufferPool readPool = new BufferPool(4, 64 * 1024, true);
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, readPool);
+        SocketChannel remote = open(10000);
+        tcbs.get(0).mss = 1000;
+        write(remote, 5000);
+        Thread.sleep(100);
+        awaitReady(1);
+        receive.processSelectedKeys();
+        assertEquals(5, queue.size());
+        Segment segment;
+        while ((segment = queue.poll()) != null) {
+            assertEquals(1000, segment.getPayloadLength());
+            segment.release();
+        }
+    }
+
+    // payload slice as the segment writes it
+    private static ByteBuffer readPayload(Segment segment) {
+        ByteBuffer data = ByteBuffer.allocate(segment.getPayloadLength());
+        CaptureChannel capture = new CaptureChannel(data);
+        try {
+            segment.write(capture);
+        } catch (IOException e) {
+            fail();
+        }
+        data.flip();
+        return data;
+    }
+
+    private static int tcpChecksum(ByteBuffer packet) {
+        int length = packet.limit() - IPHeader.SIZE;
+        long pseudo = 0;
+        pseudo += BitUtils.getUnsignedShort(packet.getShort(12)) + BitUtils.getUnsignedShort(packet.getShort(14));
+        pseudo += BitUtils.getUnsignedShort(packet.getShort(16)) + BitUtils.getUnsignedShort(packet.getShort(18));
+        pseudo += PacketView.TCP + length;
+        return BitUtils.checksum(packet, IPHeader.SIZE, length, pseudo);
+    }
+
+    /**
+     * Keeps the payload of a gathering write
+     */
+    private static class CaptureChannel extends DiscardChannel {
+        private ByteBuffer data;
+
+        CaptureChannel(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            if (length > 1) {
+                data.put(srcs[offset + 1].duplicate());
+            }
+            return super.write(srcs, offset, length);
+        }
+    }
+}
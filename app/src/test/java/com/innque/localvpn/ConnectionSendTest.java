@@ -0,0 +1,419 @@
+package com.innque.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectionSendTest {
+    private static final int PAYLOAD = 1460;
+    private static final int WINDOW = 64; // segments the device has in flight
+    private static final int TOTAL = 2000 * PAYLOAD;
+
+    private AckChannel device = new AckChannel();
+    private TestLoop fixture;
+    private BufferPool pool;
+    private BufferPool headerPool;
+    private EventLoop loop;
+    private SocketChannel client;
+    private SocketChannel remote;
+    private TCB tcb;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        fixture = new TestLoop(device, WINDOW * 2, 16).start();
+        pool = fixture.pool;
+        headerPool = fixture.headerPool;
+        loop = fixture.loop;
+        SocketChannel[] connection = fixture.connect(4096);
+        client = connection[0];
+        remote = connection[1];
+        tcb = TestLoop.tcb(headerPool, client);
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        fixture.register(tcb);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        fixture.stop();
+        remote.close();
+        // queued payload went back to the pool with the flow
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, headerPool.getOutstanding());
+    }
+
+    private static byte data(long offset) {
+        return (byte) (offset % 251);
+    }
+
+    // device segment with payload starting at seq
+    private void offer(long seq) {
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(BitUtils.toByteArray(TestLoop.HEADER_HEX));
+        buffer.putInt(IPHeader.SIZE + 4, (int) seq);
+        for (int i = 0; i < PAYLOAD; i++) {
+            buffer.put(data(seq + i));
+        }
+        buffer.flip();
+        while (!loop.offer(buffer)) {
+            Thread.yield();
+        }
+    }
+
+    // device segment without payload
+    private void control(long seq, long ack, int flags) {
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(BitUtils.toByteArray(TestLoop.HEADER_HEX));
+        buffer.putShort(2, (short) (IPHeader.SIZE + TCPHeader.SIZE));
+        buffer.putInt(IPHeader.SIZE + 4, (int) seq);
+        buffer.putInt(IPHeader.SIZE + 8, (int) ack);
+        buffer.put(IPHeader.SIZE + 13, (byte) flags);
+        buffer.flip();
+        while (!loop.offer(buffer)) {
+            Thread.yield();
+        }
+    }
+
+    private void awaitAck(long ack, int flags) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.ack != ack || device.flags != flags) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitClosed() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loop.getFlowCount() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(TCB.TCBStatus.CLOSED, tcb.status);
+        assertFalse(client.isOpen());
+        assertEquals(0, loop.getTimerCount());
+    }
+
+    // sends a window past the last ack, goes back to the ack when it stops moving
+    private void sendAll() throws InterruptedException {
+        long next = 0;
+        long lastAck = -1;
+        long stalled = System.nanoTime();
+        long deadline = System.currentTimeMillis() + 20000;
+        while (device.ack < TOTAL) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            long ack = device.ack;
+            if (ack != lastAck) {
+                lastAck = ack;
+                stalled = System.nanoTime();
+                next = Math.max(next, ack);
+            } else if (System.nanoTime() - stalled > TimeUnit.MILLISECONDS.toNanos(20)) {
+                // retransmit from the ack
+                next = ack;
+                stalled = System.nanoTime();
+            }
+            if (next < TOTAL && next - ack < WINDOW * PAYLOAD) {
+                offer(next);
+                next += PAYLOAD;
+            } else {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void testAckOnlyWhatTheSocketTook() throws IOException, InterruptedException {
+        // remote not reading, the socket fills up
+        for (int i = 0; i < WINDOW; i++) {
+            offer((long) i * PAYLOAD);
+        }
+        Thread.sleep(200);
+        long acked = device.ack;
+        assertTrue(acked > 0);
+        assertTrue(acked < WINDOW * PAYLOAD);
+        // everything not acked past the queue is dropped, never written
+        assertTrue(tcb.sendQueueBytes <= ConnectionSend.SEND_QUEUE_LIMIT);
+
+        // bytes reaching the remote are exactly the acked ones, after the queue drains
+        ByteBuffer buffer = ByteBuffer.allocate(WINDOW * PAYLOAD);
+        long deadline = System.currentTimeMillis() + 5000;
+        remote.configureBlocking(false);
+        long settled = System.currentTimeMillis();
+        // read until what arrived matches the ack and nothing moves for a while
+        while (System.currentTimeMillis() - settled < 200) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            if (remote.read(buffer) > 0 || buffer.position() != device.ack) {
+                settled = System.currentTimeMillis();
+            }
+        }
+        assertTrue(device.ack > acked);
+        assertEquals(device.ack, buffer.position());
+        assertEquals(0, tcb.sendQueueBytes);
+        for (int i = 0; i < buffer.position(); i++) {
+            assertEquals(data(i), buffer.get(i));
+        }
+    }
+
+    @Test
+    public void testSlowRemote() throws InterruptedException {
+        final byte[] mismatch = new byte[1];
+        final long[] received = new long[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                try {
+                    while (received[0] < TOTAL) {
+                        buffer.clear();
+                        int size = remote.read(buffer);
+                        if (size < 0) {
+                            break;
+                        }
+                        for (int i = 0; i < size; i++) {
+                            if (buffer.get(i) != data(received[0] + i)) {
+                                mismatch[0] = 1;
+                            }
+                        }
+                        received[0] += size;
+                        if (received[0] % 10 == 0) {
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // closed
+                }
+            }
+        });
+        reader.start();
+        sendAll();
+        reader.join(5000);
+        // in order and complete, nothing acked was lost
+        assertEquals(TOTAL, received[0]);
+        assertEquals(0, mismatch[0]);
+        assertEquals(TOTAL, device.ack);
+    }
+
+    // the loop thread reads the delay, set it there
+    private void setAckDelay(final long ackDelay) throws InterruptedException {
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                loop.getSend().setAckDelay(ackDelay);
+            }
+        });
+    }
+
+    @Test
+    public void testDelayedAck() throws InterruptedException {
+        setAckDelay(TimeUnit.MILLISECONDS.toNanos(300));
+        offer(0);
+        Thread.sleep(100);
+        // a single segment waits for a second one or the timer
+        assertEquals(0, device.writes);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.ack != PAYLOAD) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, device.writes);
+        assertEquals(1, loop.getSend().getAcksSent());
+        assertEquals(0, loop.getSend().getAcksSuppressed());
+    }
+
+    @Test
+    public void testAckEverySecondSegment() throws InterruptedException {
+        setAckDelay(TimeUnit.SECONDS.toNanos(10));
+        offer(0);
+        offer(PAYLOAD);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.ack != 2 * PAYLOAD) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        // one ack for both, long before the timer
+        assertEquals(1, device.writes);
+        assertEquals(1, loop.getSend().getAcksSent());
+        assertEquals(1, loop.getSend().getAcksSuppressed());
+    }
+
+    @Test
+    public void testPiggyback() throws IOException, InterruptedException {
+        setAckDelay(TimeUnit.SECONDS.toNanos(10));
+        offer(0);
+        Thread.sleep(50);
+        assertEquals(0, device.writes);
+        // remote answers, the data segment carries the ack
+        remote.write(ByteBuffer.wrap(new byte[100]));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.ack != PAYLOAD) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, device.writes);
+        assertEquals(0, loop.getSend().getAcksSent());
+        assertEquals(1, loop.getSend().getAcksSuppressed());
+        // nothing left to send on the timer
+        assertEquals(0, tcb.ackDeadline);
+    }
+
+    @Test
+    public void testNoDelay() throws InterruptedException {
+        setAckDelay(0);
+        offer(0);
+        offer(PAYLOAD);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.ack != 2 * PAYLOAD) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        // every segment acked on its own
+        assertEquals(2, loop.getSend().getAcksSent());
+        assertEquals(0, loop.getSend().getAcksSuppressed());
+    }
+
+    @Test
+    public void testDeviceClosesFirst() throws IOException, InterruptedException {
+        offer(0);
+        control(PAYLOAD, 0, TCPHeader.FIN + TCPHeader.ACK);
+        // FIN acked right away, after its data
+        awaitAck(PAYLOAD + 1, TCPHeader.ACK);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * PAYLOAD);
+        remote.socket().setSoTimeout(5000);
+        int size;
+        while ((size = remote.read(buffer)) >= 0) {
+            assertTrue(size > 0);
+        }
+        // remote saw the half close after all the data
+        assertEquals(PAYLOAD, buffer.position());
+        assertEquals(TCB.TCBStatus.CLOSE_WAIT, tcb.status);
+
+        // remote still sends, then closes
+        remote.write(ByteBuffer.wrap(new byte[100]));
+        remote.close();
+        awaitAck(PAYLOAD + 1, TCPHeader.FIN + TCPHeader.ACK);
+        assertEquals(TCB.TCBStatus.LAST_ACK, tcb.status);
+        control(PAYLOAD + 1, 101, TCPHeader.ACK);
+        awaitClosed();
+    }
+
+    @Test
+    public void testRemoteClosesFirst() throws IOException, InterruptedException {
+        remote.close();
+        awaitAck(0, TCPHeader.FIN + TCPHeader.ACK);
+        assertEquals(TCB.TCBStatus.FIN_WAIT, tcb.status);
+        // device acks the FIN and closes too
+        control(0, 1, TCPHeader.FIN + TCPHeader.ACK);
+        awaitAck(1, TCPHeader.ACK);
+        assertEquals(TCB.TCBStatus.TIME_WAIT, tcb.status);
+        // socket goes right away, the flow after TIME_WAIT
+        assertFalse(client.isOpen());
+        assertEquals(1, loop.getFlowCount());
+        // a repeated FIN is acked again
+        long writes = device.writes;
+        control(0, 1, TCPHeader.FIN + TCPHeader.ACK);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.writes == writes) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, device.ack);
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(EventLoop.TIME_WAIT_TIMEOUT));
+        awaitClosed();
+    }
+
+    @Test
+    public void testFinRetransmitted() throws IOException, InterruptedException {
+        remote.close();
+        awaitAck(0, TCPHeader.FIN + TCPHeader.ACK);
+        long writes = device.writes;
+        // device never acks, the FIN goes out again after the rto
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.writes < writes + 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(TCPHeader.FIN + TCPHeader.ACK, device.flags);
+        control(0, 1, TCPHeader.ACK);
+        Thread.sleep(100);
+        writes = device.writes;
+        Thread.sleep(1500);
+        // acked, no more FINs
+        assertEquals(writes, device.writes);
+        assertEquals(TCB.TCBStatus.FIN_WAIT, tcb.status);
+    }
+
+    @Test
+    public void testBadPacketSkipped() throws InterruptedException {
+        // cut short inside the ip header, reading the flow key fails
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(BitUtils.toByteArray(TestLoop.HEADER_HEX), 0, 10);
+        buffer.flip();
+        while (!loop.offer(buffer)) {
+            Thread.yield();
+        }
+        // the shard goes on with the next packet
+        offer(0);
+        awaitAck(PAYLOAD, TCPHeader.ACK);
+        assertEquals(1, loop.getSend().getErrors());
+    }
+
+    @Test
+    public void testSynAckResent() throws InterruptedException {
+        // the device never got our SYN-ACK and sends its SYN again
+        tcb.status = TCB.TCBStatus.SYN_RECEIVED;
+        tcb.lSequenceNum = 1001;
+        control(0, 0, TCPHeader.SYN);
+        awaitAck(0, TCPHeader.SYN + TCPHeader.ACK);
+        assertEquals(1000, device.seq);
+        assertEquals(1001, tcb.lSequenceNum);
+        assertEquals(1, loop.getFlowCount());
+    }
+
+    @Test
+    public void testWindowScaledAfterSynAck() throws InterruptedException {
+        tcb.status = TCB.TCBStatus.SYN_RECEIVED;
+        tcb.lSequenceNum = 1001;
+        tcb.localWindowScale = 3;
+        int window = BitUtils.getUnsignedShort(tcb.advertisedWindow);
+        control(0, 0, TCPHeader.SYN);
+        awaitAck(0, TCPHeader.SYN + TCPHeader.ACK);
+        // never scaled in the SYN-ACK
+        assertEquals(window, device.window);
+        control(0, 1001, TCPHeader.ACK);
+        offer(0);
+        awaitAck(PAYLOAD, TCPHeader.ACK);
+        assertEquals(loop.getSend().getSendQueueLimit() >> 3, device.window);
+    }
+
+    @Test
+    public void testRemoteReset() throws IOException, InterruptedException {
+        offer(0);
+        awaitAck(PAYLOAD, TCPHeader.ACK);
+        remote.setOption(StandardSocketOptions.SO_LINGER, 0);
+        remote.close();
+        awaitAck(PAYLOAD, TCPHeader.RST + TCPHeader.ACK);
+        awaitClosed();
+        assertEquals(1, loop.getSend().getResets());
+    }
+
+    @Test
+    public void testDeviceReset() throws IOException, InterruptedException {
+        control(0, 0, TCPHeader.RST);
+        awaitClosed();
+        // nothing answers a reset, the remote is reset rather than closed
+        assertEquals(0, device.writes);
+        remote.socket().setSoTimeout(5000);
+        try {
+            remote.read(ByteBuffer.allocate(16));
+            fail();
+        } catch (IOException e) {
+            // connection reset
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Asks an event loop the same question over and over, one at a time, after a stand-in server
+ * answered it once, and reports the time from the device query to its answer reaching the tun
+ * and the heap the loop thread allocates per cache hit.
+ */
+public class DNSBenchmark extends Benchmark {
+    private static final int QUERIES = 100000;
+    private static final byte[] NAME = {3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0};
+
+    private static long allocated(Thread thread) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(thread.getId());
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        final DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        // one A record with a day's ttl for anything
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(512);
+                try {
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress sender = server.receive(buffer);
+                        buffer.putShort(2, (short) 0x8180);
+                        buffer.putShort(6, (short) 1);
+                        buffer.putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1)
+                                .putInt(86400).putShort((short) 4).putInt(0x01020304);
+                        buffer.flip();
+                        server.send(buffer, sender);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        serverThread.start();
+
+        DiscardChannel device = new DiscardChannel();
+        TestLoop fixture = new TestLoop(device, 16, 16).start();
+        BufferPool pool = fixture.pool;
+        final EventLoop loop = fixture.loop;
+        Thread loopThread = fixture.getLoopThread();
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                loop.getUdp().getDns().setPort(port);
+            }
+        });
+
+        int size = UDPSession.HEADER_SIZE + 12 + NAME.length + 4;
+        ByteBuffer query = ByteBuffer.allocate(size);
+        query.putLong(0, 0x4500000012344000L);
+        query.putShort(2, (short) size);
+        query.putShort(8, (short) (64 << 8 | PacketView.UDP));
+        query.putInt(12, 0x0A000002);
+        query.putInt(16, 0x7F000001);
+        query.putShort(IPHeader.SIZE, (short) 40000);
+        query.putShort(IPHeader.SIZE + 2, (short) port);
+        query.putShort(IPHeader.SIZE + 4, (short) (size - IPHeader.SIZE));
+        query.position(UDPSession.HEADER_SIZE);
+        query.putShort((short) 1).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0).putInt(0);
+        query.put(NAME).putShort((short) 1).putShort((short) 1);
+
+        int warmup = QUERIES / 10;
+        long[] latencies = new long[QUERIES];
+        long allocatedBefore = 0;
+        long start = 0;
+        for (int i = 0; i < warmup + QUERIES; i++) {
+            if (i == warmup) {
+                allocatedBefore = allocated(loopThread);
+                start = System.nanoTime();
+            }
+            ByteBuffer buffer = pool.acquire();
+            buffer.put(query.array());
+            buffer.putShort(UDPSession.HEADER_SIZE, (short) i);
+            buffer.flip();
+            long writes = device.writes;
+            long sent = System.nanoTime();
+            while (!loop.offer(buffer)) {
+                Thread.yield();
+            }
+            // the first one waits on the stand-in server
+            long deadline = sent + 5000000000L;
+            while (device.writes == writes && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            if (i >= warmup) {
+                latencies[i - warmup] = System.nanoTime() - sent;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedBytes = allocated(loopThread) - allocatedBefore;
+        final long[] counters = new long[2];
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                counters[0] = loop.getUdp().getDns().getHits();
+                counters[1] = loop.getUdp().getDns().getMisses();
+            }
+        });
+        Arrays.sort(latencies);
+
+        System.out.println("DNSBenchmark cache hits: p50 " + latencies[QUERIES / 2] / 1000 + " us, p99 "
+                + latencies[QUERIES * 99 / 100] / 1000 + " us, " + QUERIES * 1000000000L / elapsed + " queries/s, "
+                + allocatedBytes / QUERIES + " bytes allocated/hit on the loop thread, hit rate "
+                + counters[0] * 100 / (counters[0] + counters[1]) + "%");
+        fixture.stop();
+        server.close();
+        serverThread.join(5000);
+        assertEquals(warmup + QUERIES - 1, counters[0]);
+        assertEquals(1, counters[1]);
+        assertEquals(0, pool.getOutstanding());
+    }
+}
@@ -0,0 +1,253 @@
+package com.innque.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DNSResolverTest {
+    private static final int DEVICE_ADDRESS = 0x0A000002; // 10.0.0.2
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int ANSWER = 0x01020304; // 1.2.3.4
+
+    private DatagramChannel server;
+    private Thread serverThread;
+    private int serverPort;
+    // queries the stand-in server got, the ttl it answers with and a gate holding its answers back
+    private AtomicInteger queries = new AtomicInteger();
+    private volatile int ttl = 300;
+    private volatile CountDownLatch gate;
+    private PacketChannel device = new PacketChannel();
+    private TestLoop fixture;
+    private BufferPool pool;
+    private EventLoop loop;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        // stand-in server, an A record for every name but fail.*, which gets SERVFAIL
+        server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverPort = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(2048);
+                try {
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress sender = server.receive(buffer);
+                        queries.incrementAndGet();
+                        CountDownLatch gate = DNSResolverTest.this.gate;
+                        if (gate != null) {
+                            gate.await(5, TimeUnit.SECONDS);
+                        }
+                        buffer.flip();
+                        server.send(answer(buffer), sender);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // closed
+                }
+            }
+        });
+        serverThread.start();
+
+        fixture = new TestLoop(device, 64, 16).start();
+        pool = fixture.pool;
+        loop = fixture.loop;
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                loop.getUdp().getDns().setPort(serverPort);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        fixture.stop();
+        server.close();
+        serverThread.join(5000);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, fixture.headerPool.getOutstanding());
+    }
+
+    private ByteBuffer answer(ByteBuffer query) {
+        int questionEnd = DNSResolver.questionLength(query, 12, query.limit()) + 12;
+        boolean fail = query.get(13) == 'f';
+        ByteBuffer response = ByteBuffer.allocate(questionEnd + 16);
+        response.putShort(query.getShort(0));
+        response.putShort((short) (fail ? 0x8182 : 0x8180));
+        response.putShort((short) 1);
+        response.putShort((short) (fail ? 0 : 1));
+        response.putInt(0);
+        for (int i = 12; i < questionEnd; i++) {
+            response.put(query.get(i));
+        }
+        if (!fail) {
+            response.putShort((short) 0xC00C); // name of the question
+            response.putShort((short) 1); // A
+            response.putShort((short) 1); // IN
+            response.putInt(ttl);
+            response.putShort((short) 4);
+            response.putInt(ANSWER);
+        }
+        response.flip();
+        return response;
+    }
+
+    // device query for an A record of name from port
+    private void query(String name, int id, int port) {
+        ByteBuffer buffer = pool.acquire();
+        buffer.position(UDPSession.HEADER_SIZE);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0100); // recursion desired
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        for (String label : name.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 1);
+        int size = buffer.position();
+        buffer.putLong(0, 0x4500000012344000L);
+        buffer.putShort(2, (short) size);
+        buffer.putShort(8, (short) (64 << 8 | PacketView.UDP));
+        buffer.putInt(12, DEVICE_ADDRESS);
+        buffer.putInt(16, LOOPBACK);
+        buffer.putShort(IPHeader.SIZE, (short) port);
+        buffer.putShort(IPHeader.SIZE + 2, (short) serverPort);
+        buffer.putShort(IPHeader.SIZE + 4, (short) (size - IPHeader.SIZE));
+        buffer.flip();
+        while (!loop.offer(buffer)) {
+            Thread.yield();
+        }
+    }
+
+    // answer to the device, checked against the query it answers, returns its ttl
+    private int reply(String name, int id, int port) throws InterruptedException {
+        ByteBuffer reply = device.packets.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        PacketView view = new PacketView().wrap(reply, 0);
+        assertTrue(view.isUDP());
+        assertEquals(LOOPBACK, view.getSourceAddress());
+        assertEquals(DEVICE_ADDRESS, view.getDestinationAddress());
+        assertEquals(serverPort, view.getSourcePort());
+        assertEquals(port, view.getDestinationPort());
+        assertEquals(0, BitUtils.checksum(reply, 0, IPHeader.SIZE, 0));
+        long pseudo = (LOOPBACK >>> 16) + (LOOPBACK & 0xFFFF) + (DEVICE_ADDRESS >>> 16) + (DEVICE_ADDRESS & 0xFFFF)
+                + PacketView.UDP + view.getUdpLength();
+        assertEquals(0, BitUtils.checksum(reply, IPHeader.SIZE, view.getUdpLength(), pseudo));
+        int dns = view.getUdpPayloadOffset();
+        assertEquals(id, BitUtils.getUnsignedShort(reply.getShort(dns)));
+        // the question as asked, case included
+        int i = dns + 12;
+        for (String label : name.split("\\.")) {
+            assertEquals(label.length(), reply.get(i++));
+            for (byte b : label.getBytes()) {
+                assertEquals(b, reply.get(i++));
+            }
+        }
+        assertEquals(0, reply.get(i++));
+        i += 4;
+        if ((reply.get(dns + 3) & 0x0F) != 0) {
+            return -1;
+        }
+        assertEquals(ANSWER, reply.getInt(i + 12));
+        return reply.getInt(i + 6);
+    }
+
+    // hits, misses, joined and forwarded, read on the loop thread
+    private long[] counters() throws InterruptedException {
+        final long[] counters = new long[4];
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                DNSResolver dns = loop.getUdp().getDns();
+                counters[0] = dns.getHits();
+                counters[1] = dns.getMisses();
+                counters[2] = dns.getJoined();
+                counters[3] = dns.getForwarded();
+            }
+        });
+        return counters;
+    }
+
+    @Test
+    public void testCacheHit() throws InterruptedException {
+        query("www.example.com", 1, 40000);
+        assertEquals(300, reply("www.example.com", 1, 40000));
+        // another port, id and case, same question
+        query("WWW.Example.com", 2, 40001);
+        assertTrue(reply("WWW.Example.com", 2, 40001) <= 300);
+        assertEquals(1, queries.get());
+        assertArrayEquals(new long[]{1, 1, 0, 1}, counters());
+        // another name goes upstream
+        query("mail.example.com", 3, 40000);
+        reply("mail.example.com", 3, 40000);
+        assertEquals(2, queries.get());
+        assertEquals(0, loop.getUdp().getSessionCount());
+    }
+
+    @Test
+    public void testTtlExpires() throws InterruptedException {
+        ttl = 1;
+        query("short.example.com", 1, 40000);
+        assertEquals(1, reply("short.example.com", 1, 40000));
+        query("short.example.com", 2, 40000);
+        reply("short.example.com", 2, 40000);
+        assertEquals(1, queries.get());
+        Thread.sleep(1100);
+        query("short.example.com", 3, 40000);
+        reply("short.example.com", 3, 40000);
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void testInFlightJoined() throws InterruptedException {
+        gate = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            query("slow.example.com", 10 + i, 40000 + i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counters()[2] < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        gate.countDown();
+        // every query answered with its own id, from one upstream query
+        boolean[] answered = new boolean[3];
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer reply = device.packets.poll(5, TimeUnit.SECONDS);
+            assertNotNull(reply);
+            PacketView view = new PacketView().wrap(reply, 0);
+            int id = reply.getShort(view.getUdpPayloadOffset());
+            assertEquals(40000 + id - 10, view.getDestinationPort());
+            answered[id - 10] = true;
+        }
+        assertArrayEquals(new boolean[]{true, true, true}, answered);
+        assertEquals(1, queries.get());
+        assertArrayEquals(new long[]{0, 3, 2, 1}, counters());
+    }
+
+    @Test
+    public void testFailureNotCached() throws InterruptedException {
+        query("fail.example.com", 1, 40000);
+        assertEquals(-1, reply("fail.example.com", 1, 40000));
+        query("fail.example.com", 2, 40000);
+        assertEquals(-1, reply("fail.example.com", 2, 40000));
+        assertEquals(2, queries.get());
+    }
+}
@@ -0,0 +1,186 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+    @Test
+    public void testShardSpread() {
+        int shards = 7;
+        int flows = 70000;
+        int[] counts = new int[shards];
+        int address = 0xC0A8FE6C;
+        // one remote, consecutive local ports, like a page opening many connections
+        for (int port = 0; port < flows; port++) {
+            long key = TCB.key(address, 443, 1024 + port);
+            int shard = EventLoop.shard(key, shards);
+            assertEquals(shard, EventLoop.shard(key, shards));
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            assertEquals(flows / shards, count, flows / shards / 10);
+        }
+    }
+
+    @Test
+    public void testShardInRange() {
+        for (int shards = 1; shards <= 8; shards++) {
+            for (long key = -1000; key < 1000; key++) {
+                int shard = EventLoop.shard(key * 0x100000001L, shards);
+                assertTrue(shard >= 0 && shard < shards);
+            }
+        }
+    }
+
+    @Test
+    public void testFlowsOwnedPerShard() throws IOException {
+        BufferPool pool = new BufferPool(4, 1500, true);
+        BufferPool headerPool = new BufferPool(4, 60, true);
+        TunWriter tunWriter = new TunWriter(new DiscardChannel(), new RingBuffer<Segment>(16, true, new WaitStrategy.Yielding()));
+        EventLoop first = new EventLoop(0, 16, 50, tunWriter, pool, headerPool, null);
+        EventLoop second = new EventLoop(1, 16, 50, tunWriter, pool, headerPool, null);
+        assertNotSame(first.getSelector(), second.getSelector());
+        TCB tcb = new TCB(1, 0, 0, 0, 0, null, null);
+        first.putTCB(tcb.key, tcb);
+        assertSame(tcb, first.getTCB(1));
+        assertNull(second.getTCB(1));
+        assertEquals(1, first.getFlowCount());
+        assertEquals(0, second.getFlowCount());
+    }
+
+    @Test
+    public void testCommandsRunOnLoopThread() throws IOException, InterruptedException {
+        BufferPool pool = new BufferPool(4, 1500, true);
+        BufferPool headerPool = new BufferPool(4, 60, true);
+        TunWriter tunWriter = new TunWriter(new DiscardChannel(), new RingBuffer<Segment>(16, true, new WaitStrategy.Yielding()));
+        int count = 1000;
+        final EventLoop loop = new EventLoop(0, 16, count, tunWriter, pool, headerPool, null);
+        final Thread thread = new Thread(loop);
+        thread.start();
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger elsewhere = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            final TCB tcb = new TCB(i, 0, 0, 0, 0, null, null);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread() != thread) {
+                        elsewhere.incrementAndGet();
+                    }
+                    // table is only touched from the loop
+                    loop.putTCB(tcb.key, tcb);
+                    loop.getTCB(tcb.key);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, elsewhere.get());
+        // the loop blocks in select between commands, at most one wakeup per command
+        assertTrue(loop.getWakeups() > 0);
+        assertTrue(loop.getWakeups() <= count);
+        assertEquals(count, loop.getFlowCount());
+        // the loop survives a failing command
+        final CountDownLatch after = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                after.countDown();
+            }
+        });
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+    }
+
+    private static TCB flow(long key, TCB.TCBStatus status, long lastActivity, BufferPool headerPool) {
+        TCB tcb = TestLoop.tcb(headerPool, null);
+        tcb.key = key;
+        tcb.status = status;
+        tcb.lastActivity = lastActivity;
+        return tcb;
+    }
+
+    @Test
+    public void testMakeRoom() throws IOException {
+        BufferPool pool = new BufferPool(4, 1500, true);
+        BufferPool headerPool = new BufferPool(16, 60, true);
+        // not started, segments stay in the queue
+        RingBuffer<Segment> queue = new RingBuffer<>(16, true, new WaitStrategy.Yielding());
+        TunWriter tunWriter = new TunWriter(new DiscardChannel(), queue);
+        EventLoop loop = new EventLoop(0, 16, 3, tunWriter, pool, headerPool, null);
+        long now = System.nanoTime();
+        TCB idle = flow(1, TCB.TCBStatus.ESTABLISHED, now - 2 * EventLoop.EVICTION_IDLE, headerPool);
+        TCB closing = flow(2, TCB.TCBStatus.CLOSE_WAIT, now, headerPool);
+        TCB busy = flow(3, TCB.TCBStatus.ESTABLISHED, now, headerPool);
+        loop.putTCB(idle.key, idle);
+        loop.putTCB(closing.key, closing);
+        loop.putTCB(busy.key, busy);
+        assertTrue(loop.makeRoom(now));
+        // a closing flow goes first, with an RST to the device
+        assertEquals(TCB.TCBStatus.CLOSED, closing.status);
+        assertEquals(1, loop.getClosingEvictions());
+        Segment segment = queue.poll();
+        assertEquals(TCPHeader.RST + TCPHeader.ACK, segment.getHeader().get(IPHeader.SIZE + 13));
+        segment.release();
+
+        loop.putTCB(4, flow(4, TCB.TCBStatus.ESTABLISHED, now, headerPool));
+        assertTrue(loop.makeRoom(now));
+        assertEquals(TCB.TCBStatus.CLOSED, idle.status);
+        assertEquals(1, loop.getIdleEvictions());
+        queue.poll().release();
+
+        // everything left is busy, the new flow is turned away
+        loop.putTCB(5, flow(5, TCB.TCBStatus.ESTABLISHED, now, headerPool));
+        assertFalse(loop.makeRoom(now));
+        assertEquals(1, loop.getRefused());
+        assertEquals(3, loop.getFlowCount());
+        assertNull(queue.poll());
+        loop.closeAll();
+        assertEquals(0, headerPool.getOutstanding());
+    }
+
+    @Test
+    public void testIdleLoopSleeps() throws IOException, InterruptedException {
+        final TestLoop fixture = new TestLoop(new DiscardChannel(), 4, 4).start();
+        final TCB tcb = flow(1, TCB.TCBStatus.ESTABLISHED, System.nanoTime(), fixture.headerPool);
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                fixture.loop.putTCB(tcb.key, tcb);
+                fixture.loop.schedule(tcb, System.nanoTime() + EventLoop.IDLE_TIMEOUT);
+            }
+        });
+        final long[] selects = new long[2];
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                selects[0] = fixture.loop.getReceive().getSelects();
+            }
+        });
+        Thread.sleep(1000);
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                selects[1] = fixture.loop.getReceive().getSelects();
+            }
+        });
+        // woken by the command only, not every tick of the wheel
+        assertTrue(selects[1] - selects[0] <= 2);
+        fixture.stop();
+        assertEquals(0, fixture.headerPool.getOutstanding());
+    }
+}
@@ -0,0 +1,82 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sets up 10k flows in an event loop's table the way a handshake does, sends and acks some data
+ * on each, then reports the heap they keep while idle and the pooled buffers they hold.
+ * Sockets are left out, they cost the same either way.
+ */
+public class FlowMemoryBenchmark extends Benchmark {
+    private static final int FLOWS = 10000;
+    private static final String SYN_HEX = "4500003c4867400040067430c0a8fe67c0a8fe6b"
+            + "e6b222b860a0e96f00000000a002ffffd5020000020405b40402080a0055a1080000000001030307";
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        BufferPool pool = new BufferPool(64, 1500, true);
+        BufferPool headerPool = new BufferPool(256, 60, true);
+        // not started, segments are taken off the queue and released below
+        RingBuffer<Segment> queue = new RingBuffer<>(16, true, new WaitStrategy.Yielding());
+        TunWriter tunWriter = new TunWriter(new DiscardChannel(), queue);
+        EventLoop loop = new EventLoop(0, 16, FLOWS, tunWriter, pool, headerPool, null);
+        byte[] syn = BitUtils.toByteArray(SYN_HEX);
+        List<TCB> flows = new ArrayList<>(FLOWS);
+        long before = usedHeap();
+
+        long now = System.nanoTime();
+        for (int i = 0; i < FLOWS; i++) {
+            ByteBuffer header = headerPool.acquire();
+            header.put(syn, 0, IPHeader.SIZE + TCPHeader.SIZE);
+            header.putShort(IPHeader.SIZE, (short) i); // device port
+            header.flip();
+            long key = new PacketView().wrap(header).flowKey();
+            Packet packet = new Packet(header, headerPool);
+            packet.swapSourceAndDestination();
+            TCB tcb = new TCB(key, 1000, 0, 1621158256, 1000, null, packet);
+            tcb.status = TCB.TCBStatus.ESTABLISHED;
+            tcb.lastActivity = now;
+            loop.putTCB(key, tcb);
+            loop.schedule(tcb, now + EventLoop.IDLE_TIMEOUT);
+            flows.add(tcb);
+
+            // one read towards the device and its ack
+            PooledBuffer payload = new PooledBuffer(pool.acquire(), pool);
+            payload.retain();
+            tcb.retransmitQueue.add(payload, 0, 100, tcb.lSequenceNum, now);
+            queue.put(tcb.segment((byte) (TCPHeader.PSH + TCPHeader.ACK), payload, 0, 100));
+            tcb.lSequenceNum += 100;
+            tcb.retransmitQueue.acknowledge(tcb.lSequenceNum, false, now);
+            tcb.rAcknowledgement = tcb.lSequenceNum;
+            queue.poll().release();
+        }
+        long after = usedHeap();
+
+        System.out.println("FlowMemoryBenchmark " + FLOWS + " idle flows: " + (after - before) / FLOWS
+                + " bytes heap/flow, pooled buffers held: " + (pool.getOutstanding() + headerPool.getOutstanding()));
+        assertEquals(FLOWS, loop.getFlowCount());
+        assertEquals(FLOWS, flows.size());
+        // idle flows borrow nothing
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, headerPool.getOutstanding());
+        loop.closeAll();
+    }
+}
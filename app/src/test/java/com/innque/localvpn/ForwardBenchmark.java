@@ -0,0 +1,146 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Forwards device segments to a loopback socket through the old copying path and through
+ * ConnectionSend, and reports the payload bytes copied per forwarded MB.
+ * Copies counted are explicit array copies plus the temporary direct buffer NIO copies heap buffers into.
+ */
+public class ForwardBenchmark extends Benchmark {
+    private static final int MB = 1024 * 1024;
+    private static final int PAYLOAD = 1460;
+    private static final int FORWARDED = 32 * MB;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private Thread drain;
+    private volatile long received;
+
+    private void open() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        final SocketChannel accepted = server.accept();
+        received = 0;
+        drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    int size;
+                    while ((size = accepted.read(buffer)) > 0) {
+                        received += size;
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        drain.start();
+    }
+
+    private void close() throws IOException, InterruptedException {
+        client.close();
+        drain.join();
+        server.close();
+    }
+
+    private void awaitReceived(long total) throws InterruptedException {
+        while (received < total) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void segment(ByteBuffer buffer, long sequence) {
+        buffer.clear();
+        buffer.put(BitUtils.toByteArray(TestLoop.HEADER_HEX));
+        buffer.putInt(IPHeader.SIZE + 4, (int) sequence);
+        buffer.position(IPHeader.SIZE + TCPHeader.SIZE + PAYLOAD);
+        buffer.flip();
+    }
+
+    // what processACK did before: getData() into a new array, then wrap it for the write
+    private void legacy() throws IOException, InterruptedException {
+        open();
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        long copied = 0;
+        long start = System.nanoTime();
+        for (long sent = 0; sent < FORWARDED; sent += PAYLOAD) {
+            segment(buffer, sent);
+            byte[] data = new Packet(buffer).getData();
+            copied += data.length;
+            ByteBuffer wrapped = ByteBuffer.wrap(data);
+            copied += wrapped.remaining(); // heap buffer, copied again by the channel
+            while (wrapped.hasRemaining()) {
+                client.write(wrapped);
+            }
+        }
+        awaitReceived(received(FORWARDED));
+        long time = System.nanoTime() - start;
+        close();
+        report("copy + wrap", copied, time);
+    }
+
+    private void zeroCopy() throws IOException, InterruptedException {
+        open();
+        BufferPool pool = new BufferPool(4, 1500, true);
+        BufferPool headerPool = new BufferPool(4, 60, true);
+        TunWriter tunWriter = new TunWriter(new DiscardChannel(),
+                new RingBuffer<Segment>(1024, true, new WaitStrategy.SpinThenPark()));
+        Thread writer = new Thread(tunWriter);
+        writer.start();
+        EventLoop loop = new EventLoop(0, 16, 50, tunWriter, pool, headerPool, null);
+        ConnectionSend send = loop.getSend();
+
+        TCB tcb = TestLoop.tcb(headerPool, client);
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        loop.putTCB(tcb.key, tcb);
+
+        long copied = 0;
+        long start = System.nanoTime();
+        for (long sent = 0; sent < FORWARDED; sent += PAYLOAD) {
+            ByteBuffer buffer = pool.acquire();
+            segment(buffer, sent);
+            if (!buffer.isDirect()) {
+                copied += PAYLOAD;
+            }
+            send.send(buffer);
+        }
+        awaitReceived(received(FORWARDED));
+        long time = System.nanoTime() - start;
+        writer.interrupt();
+        writer.join();
+        loop.closeTCB(tcb);
+        close();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, headerPool.getOutstanding());
+        report("payload slice", copied, time);
+    }
+
+    // forwarding goes in whole segments
+    private static long received(long forwarded) {
+        return (forwarded + PAYLOAD - 1) / PAYLOAD * PAYLOAD;
+    }
+
+    private static void report(String name, long copied, long time) {
+        System.out.println("ForwardBenchmark " + name + ": " + copied / (FORWARDED / MB) + " bytes copied/MB, "
+                + (FORWARDED * 1000L / time) + " MB/s");
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        legacy();
+        zeroCopy();
+    }
+}
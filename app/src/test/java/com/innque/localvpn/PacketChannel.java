@@ -0,0 +1,23 @@
+package com.innque.localvpn;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Device side of the tun in tests, keeps a copy of every packet written to it
+ */
+public class PacketChannel extends DiscardChannel {
+    public BlockingQueue<ByteBuffer> packets = new LinkedBlockingQueue<>();
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        ByteBuffer copy = ByteBuffer.allocate(1500);
+        for (int i = offset; i < offset + length; i++) {
+            copy.put(srcs[i].duplicate());
+        }
+        copy.flip();
+        packets.add(copy);
+        return super.write(srcs, offset, length);
+    }
+}
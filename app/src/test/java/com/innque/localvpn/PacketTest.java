@@ -115,5 +115,8 @@ public class PacketTest {
         assertEquals(packet.tcpHeader.getDestinationPort(), 59058);
         assertEquals(packet.ipHeader.getSourceAddress(), InetAddress.getByName("192.168.254.107"));
         assertEquals(packet.ipHeader.getDestinationAddress(), InetAddress.getByName("192.168.254.103"));
+        assertEquals(packet.ipHeader.getSourceAddressInt(), 0xC0A8FE6B);
+        assertEquals(packet.ipHeader.getDestinationAddressInt(), 0xC0A8FE67);
+        assertEquals(IPHeader.toString(packet.ipHeader.getSourceAddressInt()), "192.168.254.107");
     }
 }
\ No newline at end of file
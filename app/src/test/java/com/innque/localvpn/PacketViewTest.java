@@ -0,0 +1,120 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PacketViewTest {
+    private static final String SYN_HEX = "4500003c4867400040067430c0a8fe67c0a8fe6b"
+            + "e6b222b860a0e96f00000000a002ffffd5020000020405b40402080a0055a1080000000001030307";
+    private static final String PSH_ACK_HEX = "4500003a4869400040067430c0a8fe67c0a8fe6b"
+            + "e6b222b860a0e9704d5879c2801802adc96800000101080a0055a2071c750f30"
+            + "68656c6c6f0a";
+
+    private static ByteBuffer buffer(int offset, String hex) {
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        buffer.position(offset);
+        buffer.put(BitUtils.toByteArray(hex));
+        buffer.flip();
+        buffer.position(offset);
+        return buffer;
+    }
+
+    @Test
+    public void testFromHexSYN() {
+        PacketView view = new PacketView().wrap(buffer(0, SYN_HEX));
+        // IP Header
+        assertEquals(view.getVersion(), 4);
+        assertEquals(view.getIpHeaderLength(), 20);
+        assertEquals(view.getType(), 0);
+        assertEquals(view.getTotalLength(), 60);
+        assertEquals(view.getIdentification(), 18535);
+        assertEquals(view.getFlags(), 2);
+        assertEquals(view.getFragmentOffset(), 0);
+        assertEquals(view.getTTL(), 64);
+        assertEquals(view.getProtocol(), 6);
+        assertTrue(view.isTCP());
+        assertEquals(view.getIpChecksum(), 29744);
+        assertEquals(view.getSourceAddress(), 0xC0A8FE67);
+        assertEquals(view.getDestinationAddress(), 0xC0A8FE6B);
+        // TCP Header
+        assertEquals(view.getSourcePort(), 59058);
+        assertEquals(view.getDestinationPort(), 8888);
+        assertEquals(view.getSequenceNumber(), 1621158255);
+        assertEquals(view.getAcknowledgmentNumber(), 0);
+        assertEquals(view.getTcpHeaderLength(), 40);
+        assertEquals(view.getTcpFlags(), 2);
+        assertFalse(view.isFIN());
+        assertTrue(view.isSYN());
+        assertFalse(view.isRST());
+        assertFalse(view.isPSH());
+        assertFalse(view.isACK());
+        assertFalse(view.isURG());
+        assertEquals(view.getWindow(), 65535);
+        assertEquals(view.getTcpChecksum(), 54530);
+        assertEquals(view.getUrgentPointer(), 0);
+        // options count as header
+        assertEquals(view.getHeaderLength(), 60);
+        assertEquals(view.getPayloadSize(), 0);
+        assertEquals(view.flowKey(), TCB.key(0xC0A8FE6B, 8888, 59058));
+    }
+
+    @Test
+    public void testFromHexPSHACK() {
+        ByteBuffer buffer = buffer(0, PSH_ACK_HEX);
+        PacketView view = new PacketView().wrap(buffer);
+        assertEquals(view.getTotalLength(), 58);
+        assertEquals(view.getIdentification(), 18537);
+        assertFalse(view.isSYN());
+        assertTrue(view.isPSH());
+        assertTrue(view.isACK());
+        assertEquals(view.getIpChecksum(), 29744);
+        assertEquals(view.getSequenceNumber(), 1621158256);
+        assertEquals(view.getAcknowledgmentNumber(), 1297643970);
+        assertEquals(view.getTcpHeaderLength(), 32);
+        assertEquals(view.getTcpFlags(), 24);
+        assertEquals(view.getWindow(), 685);
+        assertEquals(view.getTcpChecksum(), 51560);
+        assertEquals(view.getPayloadOffset(), 52);
+        assertEquals(view.getPayloadSize(), 6);
+        // payload is the same buffer, positioned
+        ByteBuffer payload = view.payload();
+        assertSame(payload, buffer);
+        assertEquals(payload.remaining(), 6);
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        assertEquals(new String(data).trim(), "hello");
+    }
+
+    @Test
+    public void testRewrap() {
+        PacketView view = new PacketView();
+        // same view, packet at an offset in a bigger buffer
+        ByteBuffer buffer = buffer(100, PSH_ACK_HEX);
+        view.wrap(buffer(0, SYN_HEX));
+        assertTrue(view.isSYN());
+        view.wrap(buffer);
+        assertEquals(view.getOffset(), 100);
+        assertEquals(view.getSourcePort(), 59058);
+        assertEquals(view.getPayloadOffset(), 152);
+        assertEquals(view.payload().remaining(), 6);
+        assertEquals(buffer.get(152), 'h');
+    }
+
+    @Test
+    public void testOptions() {
+        PacketView view = new PacketView().wrap(buffer(0, SYN_HEX));
+        // mss, sack permitted, timestamps, nop, window scale
+        assertEquals(view.option(PacketView.WINDOW_SCALE), 57);
+        assertEquals(view.getWindowScale(), 7);
+        assertEquals(view.getMss(), 1460);
+        assertEquals(view.option(4), 44);
+        // timestamps only
+        view.wrap(buffer(0, PSH_ACK_HEX));
+        assertEquals(view.getWindowScale(), -1);
+        assertEquals(view.getMss(), -1);
+        assertEquals(view.option(8), 42);
+    }
+}
@@ -0,0 +1,117 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads from a loopback socket through ConnectionReceive with one segment per read
+ * and with 64 KB reads cut into segments, and reports socket reads per MB, read pool misses and
+ * the heap the reading thread allocates per segment once warmed up.
+ */
+public class ReadBenchmark extends Benchmark {
+    private static final int MB = 1024 * 1024;
+    private static final int DOWNLOADED = 64 * MB;
+    private static final int WARMUP = 8 * MB;
+    private static final int TUN_QUEUE = 4096;
+    // what the jdk allocates per select, a selected key entry and its iterator, with some slack
+    private static final long SELECT_ALLOCATION = 128;
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void run(String name, int readSize, long maxAllocatedPerSegment) throws IOException, InterruptedException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        final SocketChannel remote = server.accept();
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+
+        // enough to cover what waits in the tun writer's queue
+        BufferPool readPool = new BufferPool(64 + TUN_QUEUE * ConnectionReceive.MSS / readSize, readSize, true);
+        BufferPool headerPool = new BufferPool(TUN_QUEUE, 60, true);
+        DiscardChannel device = new DiscardChannel();
+        TunWriter tunWriter = new TunWriter(device, new RingBuffer<Segment>(TUN_QUEUE, true, new WaitStrategy.SpinThenPark()));
+        Thread writer = new Thread(tunWriter);
+        writer.start();
+        ConnectionReceive receive = new ConnectionReceive(selector, tunWriter, readPool);
+
+        TCB tcb = TestLoop.tcb(headerPool, channel);
+        // device never holds the download back
+        tcb.window = Integer.MAX_VALUE;
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        tcb.selectionKey = channel.register(selector, SelectionKey.OP_READ, tcb);
+        // segments and retransmit entries reused the way an event loop's flows reuse them
+        tcb.setRecycler(new Recycler());
+
+        Thread source = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    for (long sent = 0; sent < DOWNLOADED; sent += data.capacity()) {
+                        data.clear();
+                        while (data.hasRemaining()) {
+                            remote.write(data);
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        long start = System.nanoTime();
+        source.start();
+        long allocatedBefore = 0;
+        long segmentsBefore = 0;
+        while (tcb.lSequenceNum < DOWNLOADED) {
+            if (segmentsBefore == 0 && tcb.lSequenceNum >= WARMUP) {
+                segmentsBefore = receive.getSegments();
+                allocatedBefore = allocated();
+            }
+            if (selector.select() > 0) {
+                receive.processSelectedKeys();
+                // device acks everything right away
+                tcb.retransmitQueue.acknowledge(tcb.lSequenceNum, false, System.nanoTime());
+            }
+        }
+        long allocatedPerSegment = (allocated() - allocatedBefore) / (receive.getSegments() - segmentsBefore);
+        while (device.bytes < DOWNLOADED + receive.getSegments() * (IPHeader.SIZE + TCPHeader.SIZE)) {
+            Thread.sleep(1);
+        }
+        long time = System.nanoTime() - start;
+        source.join();
+        writer.interrupt();
+        writer.join();
+        tcb.close();
+        remote.close();
+        server.close();
+        selector.close();
+        assertEquals(0, readPool.getOutstanding());
+        System.out.println("ReadBenchmark " + name + ": " + receive.getReads() * MB / DOWNLOADED + " reads/MB, "
+                + receive.getSegments() * MB / DOWNLOADED + " segments/MB, " + (DOWNLOADED * 1000L / time) + " MB/s, "
+                + "read pool misses: " + readPool.getMisses() + ", " + allocatedPerSegment
+                + " bytes allocated/segment on the reading thread");
+        assertTrue(allocatedPerSegment < maxAllocatedPerSegment);
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        // one select per segment, then one per read of many segments
+        run("segment per read", ConnectionReceive.MSS, SELECT_ALLOCATION);
+        run("64 KB reads", 64 * 1024, 32);
+    }
+}
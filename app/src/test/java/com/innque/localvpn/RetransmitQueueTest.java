@@ -0,0 +1,200 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class RetransmitQueueTest {
+    private static final long MS = 1000000L;
+
+    private BufferPool pool = new BufferPool(8, 4096, true);
+    private BufferPool headerPool = new BufferPool(8, 60, true);
+
+    private PooledBuffer read(int size) {
+        ByteBuffer buffer = pool.acquire();
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) i);
+        }
+        return new PooledBuffer(buffer, pool);
+    }
+
+    @Test
+    public void testTrim() {
+        RetransmitQueue queue = new RetransmitQueue();
+        queue.add(read(3000), 0, 3000, 100, 0);
+        queue.add(read(1000), 0, 1000, 3100, 0);
+        assertEquals(4000, queue.getBytes());
+        assertEquals(2, pool.getOutstanding());
+        // old ack
+        assertFalse(queue.acknowledge(50, false, MS));
+        assertEquals(4000, queue.getBytes());
+        // part of the first read
+        queue.acknowledge(1100, false, MS);
+        assertEquals(3000, queue.getBytes());
+        assertEquals(2, pool.getOutstanding());
+        // across both
+        queue.acknowledge(3600, false, MS);
+        assertEquals(500, queue.getBytes());
+        assertEquals(1, pool.getOutstanding());
+        assertTrue(queue.getDeadline() > 0);
+        queue.acknowledge(4100, false, MS);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getDeadline());
+        assertEquals(0, pool.getOutstanding());
+    }
+
+    @Test
+    public void testSequenceWrap() {
+        RetransmitQueue queue = new RetransmitQueue();
+        queue.add(read(2000), 0, 2000, 0xFFFFFC00L, 0);
+        queue.acknowledge(0x100, false, MS);
+        assertEquals(1024 + 0x100, 2000 - queue.getBytes());
+        queue.acknowledge(2000 - 1024, false, MS);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testRttEstimate() {
+        RetransmitQueue queue = new RetransmitQueue();
+        assertEquals(RetransmitQueue.INITIAL_RTO, queue.getRto());
+        queue.add(read(100), 0, 100, 0, 0);
+        queue.acknowledge(100, false, 300 * MS);
+        // first sample: srtt = r, rttvar = r / 2, rto = srtt + 4 * rttvar
+        assertEquals(300 * MS, queue.getSrtt());
+        assertEquals(150 * MS, queue.getRttvar());
+        assertEquals(900 * MS, queue.getRto());
+        queue.add(read(100), 0, 100, 100, 1000 * MS);
+        queue.acknowledge(200, false, 1100 * MS);
+        assertEquals((7 * 300 + 100) * MS / 8, queue.getSrtt());
+        assertEquals((3 * 150 + 200) * MS / 4, queue.getRttvar());
+        // never under the minimum
+        for (int i = 0; i < 50; i++) {
+            long now = (2000 + i) * MS;
+            queue.add(read(1), 0, 1, 200 + i, now);
+            queue.acknowledge(201 + i, false, now);
+        }
+        assertEquals(RetransmitQueue.MIN_RTO, queue.getRto());
+    }
+
+    @Test
+    public void testTimeoutBackoff() {
+        RetransmitQueue queue = new RetransmitQueue();
+        queue.add(read(100), 0, 100, 0, 0);
+        assertEquals(RetransmitQueue.INITIAL_RTO, queue.getDeadline());
+        assertFalse(queue.expired(RetransmitQueue.INITIAL_RTO - 1));
+        assertTrue(queue.expired(RetransmitQueue.INITIAL_RTO));
+        assertEquals(2 * RetransmitQueue.INITIAL_RTO, queue.getRto());
+        assertEquals(3 * RetransmitQueue.INITIAL_RTO, queue.getDeadline());
+        assertTrue(queue.expired(3 * RetransmitQueue.INITIAL_RTO));
+        assertEquals(4 * RetransmitQueue.INITIAL_RTO, queue.getRto());
+        assertEquals(2, queue.getTimeouts());
+        // retransmitted, so the ack gives no sample (Karn)
+        queue.acknowledge(100, false, 8 * RetransmitQueue.INITIAL_RTO);
+        assertEquals(0, queue.getSrtt());
+        assertEquals(4 * RetransmitQueue.INITIAL_RTO, queue.getRto());
+        for (int i = 0; i < 20; i++) {
+            queue.add(read(1), 0, 1, 100 + i, 0);
+            queue.expired(Long.MAX_VALUE / 2);
+            queue.acknowledge(101 + i, false, 0);
+        }
+        assertEquals(RetransmitQueue.MAX_RTO, queue.getRto());
+    }
+
+    @Test
+    public void testFastRetransmit() {
+        RetransmitQueue queue = new RetransmitQueue();
+        queue.add(read(3000), 0, 3000, 0, 0);
+        queue.acknowledge(1000, false, MS);
+        assertFalse(queue.acknowledge(1000, true, MS));
+        // data carrying or window updating acks don't count
+        assertFalse(queue.acknowledge(1000, false, MS));
+        assertFalse(queue.acknowledge(1000, true, MS));
+        assertTrue(queue.acknowledge(1000, true, MS));
+        assertFalse(queue.acknowledge(1000, true, MS));
+        assertEquals(1, queue.getFastRetransmits());
+        // new data acked starts the count again
+        queue.acknowledge(2000, false, MS);
+        queue.acknowledge(2000, true, MS);
+        queue.acknowledge(2000, true, MS);
+        assertTrue(queue.acknowledge(2000, true, MS));
+        assertEquals(2, queue.getRetransmits());
+    }
+
+    @Test
+    public void testRetransmitSegment() {
+        TCB tcb = TestLoop.tcb(headerPool, null);
+        tcb.lSequenceNum = 5000;
+        tcb.lAcknowledgement = 77;
+        RetransmitQueue queue = tcb.retransmitQueue;
+        queue.add(read(3000), 0, 3000, 2000, 0);
+        queue.acknowledge(2500, false, MS);
+        Segment segment = queue.retransmit(tcb, 1460);
+        assertEquals(1460, segment.getPayloadLength());
+        ByteBuffer header = segment.getHeader();
+        assertEquals(2500, BitUtils.getUnsignedInt(header.getInt(IPHeader.SIZE + 4)));
+        assertEquals(77, BitUtils.getUnsignedInt(header.getInt(IPHeader.SIZE + 8)));
+        assertEquals(IPHeader.SIZE + TCPHeader.SIZE + 1460, BitUtils.getUnsignedShort(header.getShort(2)));
+        // tcp checksum over the slice starting at the first unacked byte
+        ByteBuffer packet = ByteBuffer.allocate(segment.length());
+        packet.put(header.duplicate());
+        for (int i = 0; i < 1460; i++) {
+            packet.put((byte) (500 + i));
+        }
+        long pseudo = BitUtils.getUnsignedShort(packet.getShort(12)) + BitUtils.getUnsignedShort(packet.getShort(14))
+                + BitUtils.getUnsignedShort(packet.getShort(16)) + BitUtils.getUnsignedShort(packet.getShort(18))
+                + PacketView.TCP + TCPHeader.SIZE + 1460;
+        assertEquals(0, BitUtils.checksum(packet, IPHeader.SIZE, TCPHeader.SIZE + 1460, pseudo));
+        assertEquals(0, BitUtils.checksum(packet, 0, IPHeader.SIZE, 0));
+        segment.release();
+        // the live sequence number is untouched
+        assertEquals(5000, tcb.lSequenceNum);
+        tcb.close();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, headerPool.getOutstanding());
+    }
+
+    @Test
+    public void testTimerOnEventLoop() throws IOException, InterruptedException {
+        DiscardChannel device = new DiscardChannel();
+        TestLoop fixture = new TestLoop(device, 8, 8).start();
+        EventLoop loop = fixture.loop;
+        SocketChannel[] connection = fixture.connect(0);
+        SocketChannel remote = connection[1];
+        TCB tcb = TestLoop.tcb(fixture.headerPool, connection[0]);
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        fixture.register(tcb);
+        remote.write(ByteBuffer.allocate(1000));
+
+        // the device never acks, the segment goes out again after the initial rto
+        long start = System.nanoTime();
+        while (device.writes < 2) {
+            assertTrue(System.nanoTime() - start < 5 * RetransmitQueue.INITIAL_RTO);
+            Thread.sleep(10);
+        }
+        assertTrue(System.nanoTime() - start >= RetransmitQueue.INITIAL_RTO - 50 * MS);
+        assertEquals(1, loop.getTimeouts());
+        assertEquals(2 * 1040, device.bytes);
+
+        // device ack stops the timer
+        ByteBuffer ack = TestLoop.header(fixture.pool);
+        ack.putShort(2, (short) (IPHeader.SIZE + TCPHeader.SIZE));
+        ack.putInt(IPHeader.SIZE + 8, 1000);
+        assertTrue(loop.offer(ack));
+        start = System.nanoTime();
+        while (!tcb.retransmitQueue.isEmpty()) {
+            assertTrue(System.nanoTime() - start < RetransmitQueue.INITIAL_RTO);
+            Thread.sleep(10);
+        }
+        Thread.sleep(2 * RetransmitQueue.INITIAL_RTO / MS);
+        assertEquals(2, device.writes);
+
+        fixture.stop();
+        remote.close();
+        assertEquals(0, fixture.pool.getOutstanding());
+        assertEquals(0, fixture.headerPool.getOutstanding());
+    }
+}
@@ -0,0 +1,180 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+    private static final int PER_PRODUCER = 200000;
+
+    @Test
+    public void testOfferPoll() {
+        RingBuffer<Integer> ring = new RingBuffer<>(3, false, new WaitStrategy.Yielding());
+        assertEquals(4, ring.capacity());
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        // bounded
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        final int[] next = {1};
+        int drained = ring.drain(new RingBuffer.Handler<Integer>() {
+            @Override
+            public void onElement(Integer element) {
+                assertEquals(next[0]++, (int) element);
+            }
+        }, 3);
+        assertEquals(3, drained);
+        assertEquals(Integer.valueOf(4), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    // producers each send increasing values, the consumer checks order per producer and the total
+    private void run(final WaitStrategy waitStrategy, final int producers) throws InterruptedException {
+        final RingBuffer<long[]> ring = new RingBuffer<>(256, producers > 1, waitStrategy);
+        final long[][] values = new long[producers][PER_PRODUCER];
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            for (int i = 0; i < PER_PRODUCER; i++) {
+                values[p][i] = ((long) producer << 32) | i;
+            }
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < PER_PRODUCER; i++) {
+                        // boxed once up front, nothing allocated per hand off
+                        ring.put(new long[]{values[producer][i]});
+                    }
+                }
+            });
+        }
+        final int[] expected = new int[producers];
+        final AtomicInteger received = new AtomicInteger();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RingBuffer.Handler<long[]> handler = new RingBuffer.Handler<long[]>() {
+                    @Override
+                    public void onElement(long[] element) {
+                        int producer = (int) (element[0] >>> 32);
+                        assertEquals(expected[producer]++, (int) element[0]);
+                        received.incrementAndGet();
+                    }
+                };
+                while (received.get() < producers * PER_PRODUCER) {
+                    if (ring.drain(handler, 64) == 0) {
+                        ring.await();
+                    }
+                }
+            }
+        });
+        consumer.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        consumer.join(20000);
+        assertFalse(consumer.isAlive());
+        assertEquals(producers * PER_PRODUCER, received.get());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testSingleProducerSpinThenPark() throws InterruptedException {
+        run(new WaitStrategy.SpinThenPark(), 1);
+    }
+
+    @Test
+    public void testMultiProducerSpinThenPark() throws InterruptedException {
+        run(new WaitStrategy.SpinThenPark(), 4);
+    }
+
+    @Test
+    public void testSingleProducerBlocking() throws InterruptedException {
+        run(new WaitStrategy.Blocking(), 1);
+    }
+
+    @Test
+    public void testMultiProducerBlocking() throws InterruptedException {
+        run(new WaitStrategy.Blocking(), 4);
+    }
+
+    @Test
+    public void testMultiProducerYielding() throws InterruptedException {
+        run(new WaitStrategy.Yielding(), 4);
+    }
+
+    @Test
+    public void testParkedConsumerWakes() throws InterruptedException {
+        final RingBuffer<Integer> ring = new RingBuffer<>(4, true, new WaitStrategy.SpinThenPark());
+        final AtomicInteger received = new AtomicInteger();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (received.get() < 3) {
+                    Integer element = ring.poll();
+                    if (element == null) {
+                        ring.await();
+                    } else {
+                        received.incrementAndGet();
+                    }
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < 3; i++) {
+            // long enough for the consumer to park
+            Thread.sleep(50);
+            ring.put(i);
+        }
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+    }
+
+    @Test
+    public void testSingleProducerHandoffs() throws InterruptedException {
+        // one element at a time, the consumer goes back to waiting before each, a lost wakeup leaves it asleep
+        final RingBuffer<Integer> ring = new RingBuffer<>(4, false, new WaitStrategy.SpinThenPark());
+        final int count = 20000;
+        final AtomicInteger received = new AtomicInteger();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (received.get() < count) {
+                    if (ring.poll() == null) {
+                        ring.await();
+                    } else {
+                        received.incrementAndGet();
+                    }
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            ring.put(i);
+            long deadline = System.nanoTime() + 5000000000L;
+            while (received.get() <= i && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            assertEquals(i + 1, received.get());
+        }
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(count, received.get());
+    }
+
+    @Test
+    public void testOnlyBlockingStrategiesFence() {
+        assertTrue(new WaitStrategy.SpinThenPark().blocks());
+        assertTrue(new WaitStrategy.Blocking().blocks());
+        assertFalse(new WaitStrategy.Yielding().blocks());
+    }
+}
@@ -0,0 +1,104 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class SegmentTest {
+    private static final String SYN_HEX = "4500003c4867400040067430c0a8fe67c0a8fe6b"
+            + "e6b222b860a0e96f00000000a002ffffd5020000020405b40402080a0055a1080000000001030307";
+
+    private BufferPool pool = new BufferPool(4, 1500, true);
+    private BufferPool headerPool = new BufferPool(4, 60, true);
+
+    private TCB tcb() {
+        ByteBuffer header = headerPool.acquire();
+        header.put(BitUtils.toByteArray(SYN_HEX), 0, IPHeader.SIZE + TCPHeader.SIZE);
+        header.flip();
+        Packet packet = new Packet(header, headerPool);
+        packet.swapSourceAndDestination();
+        return new TCB(0, 1000, 0, 1621158256, 0, null, packet);
+    }
+
+    // writes the segment to a file, reads it back as a single packet
+    private Packet written(Segment segment) throws IOException {
+        File file = File.createTempFile("segment", null);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            segment.write(channel);
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer, 0);
+            buffer.flip();
+            return new Packet(buffer);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGatheringWrite() throws IOException {
+        TCB tcb = tcb();
+        ByteBuffer buffer = pool.acquire();
+        // payload somewhere in the middle of a receive buffer, odd size
+        for (int i = 0; i < 101; i++) {
+            buffer.put(7 + i, (byte) i);
+        }
+        Segment segment = tcb.segment((byte) (TCPHeader.PSH + TCPHeader.ACK), new PooledBuffer(buffer, pool), 7, 101);
+        assertEquals(IPHeader.SIZE + TCPHeader.SIZE + 101, segment.length());
+
+        Packet packet = written(segment);
+        segment.release();
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(141, packet.buffer.limit());
+        assertEquals(141, packet.ipHeader.getTotalLength());
+        assertEquals(1000, packet.tcpHeader.getSequenceNumber());
+        assertEquals(1621158256, packet.tcpHeader.getAcknowledgmentNumber());
+        assertEquals(100, packet.buffer.get(140));
+        int ipChecksum = packet.ipHeader.getChecksum();
+        int tcpChecksum = packet.tcpHeader.getChecksum();
+        assertEquals(packet.ipHeader.checksum(), ipChecksum);
+        assertEquals(packet.tcpHeader.checksum(101), tcpChecksum);
+    }
+
+    @Test
+    public void testHeaderOnly() throws IOException {
+        TCB tcb = tcb();
+        Segment segment = tcb.segment((byte) (TCPHeader.SYN + TCPHeader.ACK), null, 0, 0);
+        Packet packet = written(segment);
+        segment.release();
+        assertEquals(40, packet.buffer.limit());
+        assertTrue(packet.tcpHeader.isSYN());
+        assertEquals(8888, packet.tcpHeader.getSourcePort());
+        int tcpChecksum = packet.tcpHeader.getChecksum();
+        assertEquals(packet.tcpHeader.checksum(0), tcpChecksum);
+        // the tcb keeps no template, the segment's header went back with it
+        assertEquals(0, headerPool.getOutstanding());
+    }
+
+    @Test
+    public void testRecycled() throws IOException {
+        TCB tcb = tcb();
+        tcb.setRecycler(new Recycler());
+        PooledBuffer payload = pool.acquirePooled();
+        payload.buffer.put(0, (byte) 1);
+        tcb.retransmitQueue.add(payload.retain(), 0, 1, tcb.lSequenceNum, System.nanoTime());
+        Segment segment = tcb.segment((byte) (TCPHeader.PSH + TCPHeader.ACK), payload, 0, 1);
+        assertEquals(41, written(segment).buffer.limit());
+        segment.release();
+        // the next segment is the same one, the acked read comes back with its wrapper
+        Segment next = tcb.segment((byte) TCPHeader.ACK, null, 0, 0);
+        assertSame(segment, next);
+        next.release();
+        tcb.retransmitQueue.acknowledge(tcb.lSequenceNum + 1, false, System.nanoTime());
+        assertTrue(tcb.retransmitQueue.isEmpty());
+        assertEquals(0, pool.getOutstanding());
+        assertSame(payload, pool.acquirePooled());
+        assertEquals(1, pool.getHits());
+    }
+}
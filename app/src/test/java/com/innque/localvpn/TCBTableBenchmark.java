@@ -0,0 +1,85 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rough lookup cost of TCBTable against the old string keyed access ordered map
+ */
+public class TCBTableBenchmark extends Benchmark {
+    private static final int LOOKUPS = 2000000;
+
+    private long sink;
+
+    private void run(int flows) throws UnknownHostException {
+        Random random = new Random(flows);
+        TCBTable table = new TCBTable(flows, new TCBTable.EvictionCallback() {
+            @Override
+            public void evicted(TCB tcb) {
+                fail("no flow should be evicted");
+            }
+        });
+        Map<String, TCB> map = new LinkedHashMap<>(flows + 1, 1, true);
+        int[] addresses = new int[flows];
+        int[] ports = new int[flows];
+        InetAddress[] inetAddresses = new InetAddress[flows];
+        for (int i = 0; i < flows; i++) {
+            addresses[i] = random.nextInt();
+            ports[i] = random.nextInt(0x10000);
+            inetAddresses[i] = InetAddress.getByAddress(new byte[]{
+                    (byte) (addresses[i] >> 24), (byte) (addresses[i] >> 16), (byte) (addresses[i] >> 8), (byte) addresses[i]});
+            long key = TCB.key(addresses[i], 443, ports[i]);
+            TCB tcb = new TCB(key, 0, 0, 0, 0, null, null);
+            table.put(key, tcb);
+            map.put(inetAddresses[i].getHostAddress() + ":" + 443 + ":" + ports[i], tcb);
+        }
+        // random order over the live flows, same for both
+        int[] order = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            order[i] = random.nextInt(flows);
+        }
+
+        for (int round = 0; round < 2; round++) { // first round is warm up
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                int flow = order[i];
+                sink += table.get(TCB.key(addresses[flow], 443, ports[flow])).key;
+            }
+            long tableTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                int flow = order[i];
+                sink += map.get(inetAddresses[flow].getHostAddress() + ":" + 443 + ":" + ports[flow]).key;
+            }
+            long mapTime = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.println("TCBTableBenchmark " + flows + " flows"
+                        + " table: " + tableTime / LOOKUPS + " ns/lookup"
+                        + ", string map: " + mapTime / LOOKUPS + " ns/lookup");
+            }
+        }
+    }
+
+    @Test
+    public void benchmark50() throws UnknownHostException {
+        run(50);
+    }
+
+    @Test
+    public void benchmark1k() throws UnknownHostException {
+        run(1000);
+    }
+
+    @Test
+    public void benchmark10k() throws UnknownHostException {
+        run(10000);
+    }
+}
@@ -0,0 +1,120 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TCBTableTest {
+
+    private static TCB tcb(long key) {
+        return new TCB(key, 0, 0, 0, 0, null, null);
+    }
+
+    @Test
+    public void testKey() {
+        // 192.168.254.107:8888 from local port 59058
+        long key = TCB.key(0xC0A8FE6B, 8888, 59058);
+        assertEquals(0xC0A8FE6B22B8E6B2L, key);
+        assertNotEquals(key, TCB.key(0xC0A8FE6B, 59058, 8888));
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        final List<TCB> evicted = new ArrayList<>();
+        TCBTable table = new TCBTable(4096, new TCBTable.EvictionCallback() {
+            @Override
+            public void evicted(TCB tcb) {
+                evicted.add(tcb);
+            }
+        });
+        Map<Long, TCB> expected = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            // small key space so puts, hits and removes collide a lot
+            long key = TCB.key(random.nextInt(64), 80, random.nextInt(32));
+            switch (random.nextInt(3)) {
+                case 0:
+                    TCB tcb = tcb(key);
+                    table.put(key, tcb);
+                    expected.put(key, tcb);
+                    break;
+                case 1:
+                    assertSame(expected.remove(key), table.remove(key));
+                    break;
+                default:
+                    assertSame(expected.get(key), table.get(key));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final List<TCB> evicted = new ArrayList<>();
+        TCBTable table = new TCBTable(3, new TCBTable.EvictionCallback() {
+            @Override
+            public void evicted(TCB tcb) {
+                evicted.add(tcb);
+            }
+        });
+        TCB a = tcb(1), b = tcb(2), c = tcb(3), d = tcb(4);
+        table.put(1, a);
+        table.put(2, b);
+        table.put(3, c);
+        table.get(1);
+        table.put(4, d);
+        assertEquals(1, evicted.size());
+        assertSame(b, evicted.get(0));
+        assertNull(table.get(2));
+        assertSame(a, table.get(1));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void testGrows() {
+        TCBTable table = new TCBTable(100000, TCB.CLOSE);
+        int initial = table.capacity();
+        for (int i = 0; i < 50000; i++) {
+            table.put(TCB.key(i, 443, i), tcb(TCB.key(i, 443, i)));
+        }
+        // sized by the flows, not by the cap
+        assertTrue(table.capacity() > initial);
+        assertTrue(table.capacity() <= 4 * 50000);
+        for (int i = 0; i < 50000; i++) {
+            assertEquals(TCB.key(i, 443, i), table.get(TCB.key(i, 443, i)).key);
+        }
+        assertFalse(table.isFull());
+    }
+
+    @Test
+    public void testVictim() {
+        TCBTable table = new TCBTable(8, TCB.CLOSE);
+        TCB busy = tcb(1), idle = tcb(2), closing = tcb(3), done = tcb(4);
+        busy.status = TCB.TCBStatus.ESTABLISHED;
+        busy.lastActivity = 300;
+        idle.status = TCB.TCBStatus.ESTABLISHED;
+        idle.lastActivity = 100;
+        closing.status = TCB.TCBStatus.CLOSE_WAIT;
+        closing.lastActivity = 200;
+        done.status = TCB.TCBStatus.TIME_WAIT;
+        done.lastActivity = 400;
+        table.put(1, busy);
+        table.put(2, idle);
+        // least recently used first, among open flows the one quiet the longest
+        assertSame(idle, table.victim(8));
+        table.put(3, closing);
+        assertSame(closing, table.victim(8));
+        table.put(4, done);
+        assertSame(done, table.victim(8));
+        // only the least recently used few are looked at
+        assertSame(idle, table.victim(2));
+        assertEquals(4, table.size());
+    }
+}
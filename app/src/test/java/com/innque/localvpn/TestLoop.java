@@ -0,0 +1,134 @@
+package com.innque.localvpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * What the tests around the event loop share: the device segment flows are made from, and an event
+ * loop on its own thread writing to a stand-in tun, with a loopback server for the flow sockets.
+ */
+public class TestLoop {
+    // 192.168.254.103:59058 to 192.168.254.108:8888, PSH ACK, 1460 bytes of payload
+    public static final String HEADER_HEX = "450005dc4869400040060000c0a8fe67c0a8fe6c"
+            + "e6b222b860a0e9704d5879c25018ffff00000000";
+
+    public final BufferPool pool;
+    public final BufferPool headerPool;
+    public final TunWriter tunWriter;
+    public final EventLoop loop;
+    private Thread writerThread;
+    private Thread loopThread;
+    private ServerSocketChannel server;
+
+    // device packets come from pool, nothing runs until start so the loop can be set up first
+    public TestLoop(GatheringByteChannel device, int poolSize, int headerPoolSize) throws IOException {
+        this.pool = new BufferPool(poolSize, LocalVPNService.MTU, true);
+        this.headerPool = new BufferPool(headerPoolSize, 60, true);
+        this.tunWriter = new TunWriter(device, new RingBuffer<Segment>(4096, true, new WaitStrategy.SpinThenPark()));
+        this.loop = new EventLoop(0, 256, 50, tunWriter, pool, headerPool, null);
+    }
+
+    public TestLoop start() {
+        writerThread = new Thread(tunWriter);
+        writerThread.start();
+        loopThread = new Thread(loop);
+        loopThread.start();
+        return this;
+    }
+
+    // closing the loop frees its flows, their buffers are back in the pools after this
+    public void stop() throws IOException, InterruptedException {
+        loopThread.interrupt();
+        loopThread.join(5000);
+        writerThread.interrupt();
+        writerThread.join(5000);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    public Thread getLoopThread() {
+        return loopThread;
+    }
+
+    // runs on the loop thread and waits for it
+    public void run(final Runnable command) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    command.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    // loopback connection, the local end non-blocking first, socket buffers of bufferSize unless 0
+    public SocketChannel[] connect(int bufferSize) throws IOException {
+        if (server == null) {
+            server = ServerSocketChannel.open();
+            if (bufferSize > 0) {
+                server.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+            }
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+        SocketChannel client = SocketChannel.open();
+        if (bufferSize > 0) {
+            client.setOption(StandardSocketOptions.SO_SNDBUF, bufferSize);
+        }
+        client.connect(server.socket().getLocalSocketAddress());
+        client.configureBlocking(false);
+        return new SocketChannel[]{client, server.accept()};
+    }
+
+    // established flow on the loop, reading from its socket
+    public void register(final TCB tcb) throws InterruptedException {
+        run(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tcb.selectionKey = tcb.channel.register(loop.getSelector(), SelectionKey.OP_READ, tcb);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                loop.putTCB(tcb.key, tcb);
+            }
+        });
+        assertNotNull(tcb.selectionKey);
+    }
+
+    // the device segment in a buffer of pool, for the caller to change before use
+    public static ByteBuffer header(BufferPool pool) {
+        ByteBuffer header = pool.acquire();
+        header.put(BitUtils.toByteArray(HEADER_HEX));
+        header.flip();
+        return header;
+    }
+
+    // flow of the device segment in header, a buffer of headerPool, keyed the way the loop keys it
+    public static TCB tcb(BufferPool headerPool, ByteBuffer header, SocketChannel channel) {
+        long key = new PacketView().wrap(header).flowKey();
+        Packet packet = new Packet(header, headerPool);
+        packet.swapSourceAndDestination();
+        return new TCB(key, 0, 0, 0, 0, channel, packet);
+    }
+
+    public static TCB tcb(BufferPool headerPool, SocketChannel channel) {
+        return tcb(headerPool, header(headerPool), channel);
+    }
+}
@@ -0,0 +1,72 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerHeapTest {
+
+    private static TCB tcb(long key, long ackDeadline) {
+        TCB tcb = new TCB(key, 0, 0, 0, 0, null, null);
+        tcb.ackDeadline = ackDeadline;
+        return tcb;
+    }
+
+    @Test
+    public void testOrder() {
+        TimerHeap heap = new TimerHeap(2);
+        Random random = new Random(1);
+        List<TCB> tcbs = new ArrayList<>();
+        // grows past its capacity
+        for (int i = 0; i < 100; i++) {
+            TCB tcb = tcb(i, 1 + random.nextInt(1000));
+            tcbs.add(tcb);
+            heap.update(tcb);
+        }
+        // moved both ways and some taken out
+        for (int i = 0; i < 100; i += 3) {
+            tcbs.get(i).ackDeadline = 1 + random.nextInt(1000);
+            heap.update(tcbs.get(i));
+        }
+        for (int i = 1; i < 100; i += 7) {
+            heap.remove(tcbs.get(i));
+            assertEquals(0, tcbs.get(i).heapIndex);
+        }
+        int size = heap.size();
+        long last = 0;
+        for (int i = 0; i < size; i++) {
+            TCB top = heap.peek();
+            assertTrue(top.heapDeadline >= last);
+            assertEquals(top.ackDeadline, top.heapDeadline);
+            last = top.heapDeadline;
+            heap.remove(top);
+        }
+        assertNull(heap.peek());
+    }
+
+    @Test
+    public void testStoppedTimerLeaves() {
+        TimerHeap heap = new TimerHeap(4);
+        TCB tcb = tcb(1, 5000000000L);
+        heap.update(tcb);
+        // the retransmit deadline comes first once it runs
+        BufferPool pool = new BufferPool(1, 64, false);
+        tcb.retransmitQueue.add(new PooledBuffer(pool.acquire(), pool), 0, 10, 0, 100);
+        heap.update(tcb);
+        assertEquals(tcb.retransmitQueue.getDeadline(), tcb.heapDeadline);
+        tcb.retransmitQueue.clear();
+        tcb.ackDeadline = 0;
+        heap.update(tcb);
+        assertEquals(0, heap.size());
+        assertEquals(0, tcb.heapIndex);
+        heap.update(tcb);
+        heap.remove(tcb);
+        heap.clear();
+        assertNull(heap.peek());
+        assertEquals(0, pool.getOutstanding());
+    }
+}
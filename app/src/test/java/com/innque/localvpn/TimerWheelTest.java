@@ -0,0 +1,195 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+    private static final long TICK = 100;
+
+    private static TCB tcb(long key) {
+        return new TCB(key, 0, 0, 0, 0, null, null);
+    }
+
+    /**
+     * Records expired flows and the time they expired at
+     */
+    private static class Recorder implements TimerWheel.Callback {
+        List<Flow> expired = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+
+        @Override
+        public void expired(Flow flow, long now) {
+            expired.add(flow);
+            times.add(now);
+        }
+    }
+
+    @Test
+    public void testExpire() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 1000);
+        Recorder recorder = new Recorder();
+        TCB first = tcb(1);
+        TCB second = tcb(2);
+        wheel.schedule(first, 1250);
+        wheel.schedule(second, 1450);
+        assertEquals(2, wheel.size());
+        assertEquals(0, wheel.expire(1200, recorder));
+        // same tick, not due yet
+        assertEquals(0, wheel.expire(1240, recorder));
+        assertEquals(1, wheel.expire(1300, recorder));
+        assertSame(first, recorder.expired.get(0));
+        assertEquals(0, first.timerDeadline);
+        assertEquals(1, wheel.expire(1500, recorder));
+        assertSame(second, recorder.expired.get(1));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testLaterRevolutions() {
+        // 8 slots of 100, 800 per revolution
+        TimerWheel wheel = new TimerWheel(8, TICK, 0);
+        Recorder recorder = new Recorder();
+        TCB near = tcb(1);
+        TCB far = tcb(2);
+        wheel.schedule(near, 150);
+        wheel.schedule(far, 150 + 3 * 800);
+        for (long now = 0; now < 150 + 3 * 800; now += 50) {
+            wheel.expire(now, recorder);
+        }
+        // same slot, only the near one ran out
+        assertEquals(1, recorder.expired.size());
+        assertSame(near, recorder.expired.get(0));
+        wheel.expire(150 + 3 * 800, recorder);
+        assertSame(far, recorder.expired.get(1));
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0);
+        Recorder recorder = new Recorder();
+        TCB[] tcbs = new TCB[4];
+        for (int i = 0; i < tcbs.length; i++) {
+            tcbs[i] = tcb(i);
+            // all in one slot
+            wheel.schedule(tcbs[i], 100);
+        }
+        wheel.cancel(tcbs[1]);
+        wheel.cancel(tcbs[1]);
+        // moved, not added twice
+        wheel.schedule(tcbs[2], 500);
+        assertEquals(3, wheel.size());
+        wheel.expire(100, recorder);
+        assertEquals(2, recorder.expired.size());
+        assertFalse(recorder.expired.contains(tcbs[1]));
+        assertFalse(recorder.expired.contains(tcbs[2]));
+        wheel.expire(500, recorder);
+        assertEquals(3, recorder.expired.size());
+        assertSame(tcbs[2], recorder.expired.get(2));
+    }
+
+    @Test
+    public void testPastDeadline() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0);
+        Recorder recorder = new Recorder();
+        wheel.expire(1000, recorder);
+        TCB tcb = tcb(1);
+        wheel.schedule(tcb, 300);
+        assertEquals(1, wheel.expire(1000, recorder));
+    }
+
+    @Test
+    public void testLongGap() {
+        TimerWheel wheel = new TimerWheel(8, TICK, 0);
+        Recorder recorder = new Recorder();
+        for (int i = 0; i < 8; i++) {
+            wheel.schedule(tcb(i), i * TICK);
+        }
+        // many revolutions later every slot is still visited
+        assertEquals(8, wheel.expire(100 * 800, recorder));
+    }
+
+    @Test
+    public void testCallbackReschedules() {
+        final TimerWheel wheel = new TimerWheel(8, TICK, 0);
+        final List<Long> times = new ArrayList<>();
+        TCB tcb = tcb(1);
+        wheel.schedule(tcb, 100);
+        TimerWheel.Callback callback = new TimerWheel.Callback() {
+            @Override
+            public void expired(Flow flow, long now) {
+                times.add(now);
+                // due again within the same tick
+                wheel.schedule(flow, now + TICK);
+            }
+        };
+        for (long now = 0; now <= 1000; now += 10) {
+            wheel.expire(now, callback);
+        }
+        // every 100, none lost or doubled
+        assertEquals(10, times.size());
+        for (int i = 1; i < times.size(); i++) {
+            assertEquals(TICK, times.get(i) - times.get(i - 1));
+        }
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testRandom() {
+        TimerWheel wheel = new TimerWheel(16, TICK, 0);
+        Recorder recorder = new Recorder();
+        Random random = new Random(1);
+        List<TCB> tcbs = new ArrayList<>();
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            TCB tcb = tcb(i);
+            long deadline = 1 + random.nextInt(20000);
+            wheel.schedule(tcb, deadline);
+            tcbs.add(tcb);
+            deadlines.add(deadline);
+        }
+        for (long now = 0; now <= 20000; now += 1 + random.nextInt(300)) {
+            wheel.expire(now, recorder);
+            for (int i = 0; i < recorder.expired.size(); i++) {
+                // never early
+                assertTrue(deadlines.get((int) recorder.expired.get(i).key) <= recorder.times.get(i));
+            }
+        }
+        wheel.expire(20000, recorder);
+        assertEquals(2000, recorder.expired.size());
+        assertEquals(0, wheel.size());
+        // never late by more than the step
+        for (int i = 0; i < recorder.expired.size(); i++) {
+            assertTrue(recorder.times.get(i) - deadlines.get((int) recorder.expired.get(i).key) <= 300);
+        }
+    }
+
+    @Test
+    public void testNextDeadline() {
+        // 8 slots of 100, 800 per revolution
+        TimerWheel wheel = new TimerWheel(8, TICK, 0);
+        Recorder recorder = new Recorder();
+        assertEquals(0, wheel.nextDeadline());
+        TCB far = tcb(1);
+        TCB near = tcb(2);
+        TCB later = tcb(3);
+        // a later revolution in an earlier slot than the near one
+        wheel.schedule(far, 150 + 3 * 800);
+        assertEquals(150 + 3 * 800, wheel.nextDeadline());
+        wheel.schedule(near, 420);
+        wheel.schedule(later, 690);
+        assertEquals(420, wheel.nextDeadline());
+        wheel.cancel(near);
+        assertEquals(690, wheel.nextDeadline());
+        assertEquals(0, wheel.expire(600, recorder));
+        assertEquals(690, wheel.nextDeadline());
+        assertEquals(1, wheel.expire(690, recorder));
+        assertEquals(150 + 3 * 800, wheel.nextDeadline());
+        wheel.cancel(far);
+        assertEquals(0, wheel.nextDeadline());
+    }
+}
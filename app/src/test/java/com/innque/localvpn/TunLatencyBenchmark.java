@@ -0,0 +1,110 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency from queueing a segment to it coming out of the "tun" end of a pipe,
+ * for the old combined read/write loop with its 10 ms sleep and for TunWriter
+ */
+public class TunLatencyBenchmark extends Benchmark {
+    private static final int SEGMENTS = 300;
+    private static final int HEADER = IPHeader.SIZE + TCPHeader.SIZE;
+
+    private BufferPool headerPool = new BufferPool(16, 60, true);
+    private ByteBuffer template = ByteBuffer.allocateDirect(60);
+
+    private interface Sink {
+        void offer(Segment segment);
+    }
+
+    // the old Connection.run with nothing to read from tun: poll, else sleep 10 ms
+    private static class LegacyLoop implements Runnable, Sink {
+        private ConcurrentLinkedQueue<Segment> queue = new ConcurrentLinkedQueue<>();
+        private GatheringByteChannel out;
+
+        LegacyLoop(GatheringByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public void offer(Segment segment) {
+            queue.offer(segment);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.interrupted()) {
+                    Segment segment = queue.poll();
+                    if (segment != null) {
+                        segment.write(out);
+                        segment.release();
+                    } else {
+                        Thread.sleep(10);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+
+    private long[] measure(Sink sink, Runnable loop, Pipe pipe) throws IOException, InterruptedException {
+        Thread thread = new Thread(loop);
+        thread.start();
+        Random random = new Random(3);
+        long[] latencies = new long[SEGMENTS];
+        ByteBuffer in = ByteBuffer.allocate(HEADER);
+        for (int i = 0; i < SEGMENTS; i++) {
+            // idle gap like interactive traffic
+            Thread.sleep(1 + random.nextInt(3));
+            long start = System.nanoTime();
+            sink.offer(new Segment(template, HEADER, headerPool, null, 0, 0));
+            in.clear();
+            while (in.hasRemaining()) {
+                pipe.source().read(in);
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        thread.interrupt();
+        thread.join();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static String report(long[] latencies) {
+        return "p50 " + latencies[latencies.length / 2] / 1000 + " us, p99 "
+                + latencies[latencies.length * 99 / 100] / 1000 + " us";
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        Pipe legacyPipe = Pipe.open();
+        LegacyLoop legacy = new LegacyLoop(legacyPipe.sink());
+        long[] legacyLatencies = measure(legacy, legacy, legacyPipe);
+
+        Pipe pipe = Pipe.open();
+        final TunWriter writer = new TunWriter(pipe.sink(),
+                new RingBuffer<Segment>(16, true, new WaitStrategy.SpinThenPark()));
+        long[] latencies = measure(new Sink() {
+            @Override
+            public void offer(Segment segment) {
+                writer.offer(segment);
+            }
+        }, writer, pipe);
+
+        System.out.println("TunLatencyBenchmark sleep loop: " + report(legacyLatencies)
+                + ", TunWriter: " + report(latencies));
+        assertEquals(0, headerPool.getOutstanding());
+    }
+}
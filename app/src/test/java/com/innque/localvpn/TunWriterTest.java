@@ -0,0 +1,73 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.*;
+
+public class TunWriterTest {
+
+    /**
+     * Tun that refuses every other write
+     */
+    private static class FailingChannel implements GatheringByteChannel {
+        DiscardChannel device = new DiscardChannel();
+        volatile int attempts;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (attempts++ % 2 == 0) {
+                throw new IOException("tun refused");
+            }
+            return device.write(srcs, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testKeepsWritingAfterError() throws InterruptedException {
+        BufferPool headerPool = new BufferPool(16, 60, true);
+        FailingChannel device = new FailingChannel();
+        // far more segments than the ring holds, a writer that stopped would block the producer
+        TunWriter tunWriter = new TunWriter(device, new RingBuffer<Segment>(8, true, new WaitStrategy.SpinThenPark()));
+        Thread writerThread = new Thread(tunWriter);
+        writerThread.start();
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer header = headerPool.acquire();
+            header.limit(40);
+            tunWriter.offer(new Segment(header, headerPool, null, 0, 0));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (device.attempts < 100) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        writerThread.interrupt();
+        writerThread.join(5000);
+        assertEquals(50, device.device.writes);
+        assertEquals(50, tunWriter.getErrors());
+        // failed or not, every segment went back
+        assertEquals(0, headerPool.getOutstanding());
+    }
+}
@@ -0,0 +1,106 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Echoes small datagrams through an event loop and a loopback server, a window of them in flight,
+ * and reports the packet rate and the heap the loop thread allocates per datagram once sessions
+ * are open and segments are recycled.
+ */
+public class UDPBenchmark extends Benchmark {
+    private static final int DATAGRAMS = 200000;
+    private static final int WINDOW = 32;
+    private static final int SIZE = 100;
+
+    private static long allocated(Thread thread) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(thread.getId());
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        final DatagramChannel server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+                try {
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress sender = server.receive(buffer);
+                        buffer.flip();
+                        server.send(buffer, sender);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        serverThread.start();
+
+        DiscardChannel device = new DiscardChannel();
+        TestLoop fixture = new TestLoop(device, 4 * WINDOW, 16).start();
+        BufferPool pool = fixture.pool;
+        EventLoop loop = fixture.loop;
+        Thread loopThread = fixture.getLoopThread();
+
+        ByteBuffer datagram = ByteBuffer.allocate(UDPSession.HEADER_SIZE + SIZE);
+        datagram.putLong(0, 0x4500000012344000L);
+        datagram.putShort(2, (short) (UDPSession.HEADER_SIZE + SIZE));
+        datagram.putShort(8, (short) (64 << 8 | PacketView.UDP));
+        datagram.putInt(12, 0x0A000002);
+        datagram.putInt(16, 0x7F000001);
+        datagram.putShort(IPHeader.SIZE, (short) 40000);
+        datagram.putShort(IPHeader.SIZE + 2, (short) port);
+        datagram.putShort(IPHeader.SIZE + 4, (short) (PacketView.UDP_HEADER_SIZE + SIZE));
+
+        long allocatedBefore = 0;
+        long start = 0;
+        int warmup = DATAGRAMS / 10;
+        for (int i = 0; i < DATAGRAMS + warmup; i++) {
+            if (i == warmup) {
+                allocatedBefore = allocated(loopThread);
+                start = System.nanoTime();
+            }
+            // a lost datagram is not resent, give up waiting on it after a while
+            long deadline = System.nanoTime() + 100000000L;
+            while (i - device.writes >= WINDOW && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            ByteBuffer buffer = pool.acquire();
+            buffer.put(datagram.array());
+            buffer.flip();
+            while (!loop.offer(buffer)) {
+                Thread.yield();
+            }
+        }
+        long deadline = System.nanoTime() + 5000000000L;
+        while (device.writes < DATAGRAMS + warmup && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedBytes = allocated(loopThread) - allocatedBefore;
+        long received = device.writes - warmup;
+
+        System.out.println("UDPBenchmark " + SIZE + " byte datagrams: " + received * 1000000000L / elapsed
+                + " echoes/s, " + allocatedBytes / received + " bytes allocated/datagram on the loop thread");
+        fixture.stop();
+        server.close();
+        serverThread.join(5000);
+        // loopback may drop a few when the server falls behind
+        assertTrue(received > DATAGRAMS * 9L / 10);
+        assertEquals(0, pool.getOutstanding());
+    }
+}
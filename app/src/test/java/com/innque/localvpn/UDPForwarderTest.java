@@ -0,0 +1,196 @@
+package com.innque.localvpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UDPForwarderTest {
+    private static final int DEVICE_ADDRESS = 0x0A000002; // 10.0.0.2
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int DEVICE_PORT = 40000;
+
+    private DatagramChannel server;
+    private Thread serverThread;
+    private int serverPort;
+    // when set the server answers with this many bytes instead of echoing
+    private volatile int replySize;
+    private PacketChannel device = new PacketChannel();
+    private TestLoop fixture;
+    private BufferPool pool;
+    private EventLoop loop;
+
+    @Before
+    public void setUp() throws IOException {
+        // echoes every datagram back to its sender
+        server = DatagramChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverPort = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                try {
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress sender = server.receive(buffer);
+                        buffer.flip();
+                        if (replySize > 0) {
+                            buffer.clear().limit(replySize);
+                        }
+                        server.send(buffer, sender);
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        serverThread.start();
+
+        fixture = new TestLoop(device, 64, 16).start();
+        pool = fixture.pool;
+        loop = fixture.loop;
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        fixture.stop();
+        server.close();
+        serverThread.join(5000);
+        // replies went back to the pool once written, sessions were closed with the loop
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(0, fixture.headerPool.getOutstanding());
+    }
+
+    private static byte data(int i) {
+        return (byte) (i % 251);
+    }
+
+    // device datagram of size bytes to the echo server
+    private void offer(int size) {
+        ByteBuffer buffer = pool.acquire();
+        buffer.putLong(0, 0x4500000012344000L);
+        buffer.putShort(2, (short) (UDPSession.HEADER_SIZE + size));
+        buffer.putShort(8, (short) (64 << 8 | PacketView.UDP));
+        buffer.putInt(12, DEVICE_ADDRESS);
+        buffer.putInt(16, LOOPBACK);
+        buffer.putShort(IPHeader.SIZE, (short) DEVICE_PORT);
+        buffer.putShort(IPHeader.SIZE + 2, (short) serverPort);
+        buffer.putShort(IPHeader.SIZE + 4, (short) (PacketView.UDP_HEADER_SIZE + size));
+        for (int i = 0; i < size; i++) {
+            buffer.put(UDPSession.HEADER_SIZE + i, data(i));
+        }
+        buffer.limit(UDPSession.HEADER_SIZE + size);
+        while (!loop.offer(buffer)) {
+            Thread.yield();
+        }
+    }
+
+    // session count and dropped datagrams, read on the loop thread
+    private long[] counters() throws InterruptedException {
+        final long[] counters = new long[2];
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                counters[0] = loop.getUdp().getSessionCount();
+                counters[1] = loop.getUdp().getDropped();
+            }
+        });
+        return counters;
+    }
+
+    private int sessions() throws InterruptedException {
+        return (int) counters()[0];
+    }
+
+    @Test
+    public void testEcho() throws InterruptedException {
+        // odd and even sizes, up to a full tun mtu
+        int[] sizes = {1, 33, 512, LocalVPNService.MTU - UDPSession.HEADER_SIZE};
+        for (int size : sizes) {
+            offer(size);
+            ByteBuffer reply = device.packets.poll(5, TimeUnit.SECONDS);
+            assertNotNull(reply);
+            PacketView view = new PacketView().wrap(reply, 0);
+            assertTrue(view.isUDP());
+            assertEquals(UDPSession.HEADER_SIZE + size, view.getTotalLength());
+            assertEquals(reply.limit(), view.getTotalLength());
+            assertEquals(LOOPBACK, view.getSourceAddress());
+            assertEquals(DEVICE_ADDRESS, view.getDestinationAddress());
+            assertEquals(serverPort, view.getSourcePort());
+            assertEquals(DEVICE_PORT, view.getDestinationPort());
+            assertEquals(PacketView.UDP_HEADER_SIZE + size, view.getUdpLength());
+            // a header with its checksum sums to 0
+            assertEquals(0, BitUtils.checksum(reply, 0, IPHeader.SIZE, 0));
+            long pseudo = (LOOPBACK >>> 16) + (LOOPBACK & 0xFFFF) + (DEVICE_ADDRESS >>> 16) + (DEVICE_ADDRESS & 0xFFFF)
+                    + PacketView.UDP + view.getUdpLength();
+            assertNotEquals(0, view.getUdpChecksum());
+            assertEquals(0, BitUtils.checksum(reply, IPHeader.SIZE, view.getUdpLength(), pseudo));
+            assertEquals(size, view.getUdpPayloadSize());
+            for (int i = 0; i < size; i++) {
+                assertEquals(data(i), reply.get(view.getUdpPayloadOffset() + i));
+            }
+        }
+        // one session for the flow
+        assertEquals(1, sessions());
+    }
+
+    @Test
+    public void testEmptyDatagramSent() throws InterruptedException {
+        offer(0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sessions() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        // the write returned 0 with nothing to write
+        assertEquals(0, counters()[1]);
+    }
+
+    @Test
+    public void testIdleExpiry() throws InterruptedException {
+        fixture.run(new Runnable() {
+            @Override
+            public void run() {
+                loop.getUdp().setIdleTimeout(200000000L); // 200 ms
+            }
+        });
+        offer(10);
+        assertNotNull(device.packets.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, sessions());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sessions() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, sessions());
+        assertEquals(0, loop.getTimerCount());
+        // a later datagram of the flow opens a new session
+        offer(10);
+        assertNotNull(device.packets.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, sessions());
+    }
+
+    @Test
+    public void testLongReplyDropped() throws InterruptedException {
+        // more than a tun packet carries, the device gets nothing rather than a cut datagram
+        replySize = 2000;
+        offer(10);
+        assertNull(device.packets.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, counters()[1]);
+        replySize = 0;
+        offer(10);
+        ByteBuffer reply = device.packets.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        assertEquals(10, new PacketView().wrap(reply, 0).getUdpPayloadSize());
+        assertEquals(1, counters()[1]);
+    }
+}
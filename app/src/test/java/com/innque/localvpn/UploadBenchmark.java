@@ -0,0 +1,99 @@
+package com.innque.localvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uploads through an EventLoop to a loopback socket, the device sending a window ahead of
+ * the acks it gets, once acking every segment and once with delayed acks, and reports
+ * throughput and tun writes per MB.
+ */
+public class UploadBenchmark extends Benchmark {
+    private static final int MB = 1024 * 1024;
+    private static final int PAYLOAD = 1460;
+    private static final int WINDOW = 44; // segments in flight, fits the 64 KB send queue
+    private static final long UPLOADED = (64L * MB / PAYLOAD) * PAYLOAD;
+
+    private void run(String name, long ackDelay) throws IOException, InterruptedException {
+        AckChannel device = new AckChannel();
+        TestLoop fixture = new TestLoop(device, WINDOW * 4, 256);
+        BufferPool pool = fixture.pool;
+        EventLoop loop = fixture.loop;
+        loop.getSend().setAckDelay(ackDelay);
+        fixture.start();
+        SocketChannel[] connection = fixture.connect(0);
+        final SocketChannel remote = connection[1];
+        TCB tcb = TestLoop.tcb(fixture.headerPool, connection[0]);
+        tcb.status = TCB.TCBStatus.ESTABLISHED;
+        fixture.register(tcb);
+
+        Thread sink = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    while (remote.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        sink.start();
+
+        // device sends a window past the last ack, goes back to the ack when it stops moving
+        long start = System.nanoTime();
+        long next = 0;
+        long lastAck = -1;
+        long stalled = start;
+        while (device.ack < UPLOADED) {
+            long ack = device.ack;
+            if (ack != lastAck) {
+                lastAck = ack;
+                stalled = System.nanoTime();
+                next = Math.max(next, ack);
+            } else if (System.nanoTime() - stalled > TimeUnit.MILLISECONDS.toNanos(200)) {
+                next = ack;
+                stalled = System.nanoTime();
+            }
+            if (next < UPLOADED && next - ack < WINDOW * PAYLOAD) {
+                ByteBuffer buffer = pool.acquire();
+                buffer.put(BitUtils.toByteArray(TestLoop.HEADER_HEX));
+                buffer.putInt(IPHeader.SIZE + 4, (int) next);
+                buffer.position(buffer.position() + PAYLOAD);
+                buffer.flip();
+                if (loop.offer(buffer)) {
+                    next += PAYLOAD;
+                } else {
+                    pool.release(buffer);
+                    Thread.yield();
+                }
+            } else {
+                Thread.yield();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        ConnectionSend send = loop.getSend();
+        System.out.println("UploadBenchmark " + name + ": "
+                + (UPLOADED * 1000 / elapsed) + " MB/s, "
+                + (device.writes * MB / UPLOADED) + " tun writes/MB, acks sent: " + send.getAcksSent()
+                + " suppressed: " + send.getAcksSuppressed());
+
+        fixture.stop();
+        remote.close();
+        sink.join(5000);
+    }
+
+    @Test
+    public void benchmark() throws IOException, InterruptedException {
+        run("ack every segment", 0);
+        run("delayed acks", ConnectionSend.ACK_DELAY);
+    }
+}